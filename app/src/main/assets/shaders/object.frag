@@ -18,6 +18,7 @@ precision mediump float;
 uniform sampler2D u_Texture;
 
 uniform vec4 u_LightingParameters;
+uniform vec3 u_LightColor;
 uniform vec4 u_MaterialParameters;
 uniform vec4 u_ColorCorrectionParameters;
 
@@ -60,7 +61,7 @@ void main() {
     // Compute specular light.
     vec3 reflectedLightDirection = reflect(viewLightDirection, viewNormal);
     float specularStrength = max(0.0, dot(viewFragmentDirection, reflectedLightDirection));
-    float specular = materialSpecular *
+    vec3 specular = u_LightColor * materialSpecular *
             pow(specularStrength, materialSpecularPower);
 
     vec3 color = objectColor.rgb * (ambient + diffuse) + specular;
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+precision mediump float;
+
+uniform sampler2D u_Texture;
+
+uniform vec4 u_LightingParameters;
+uniform vec3 u_LightColor;
+uniform vec4 u_MaterialParameters;
+// Irradiance coefficients from SphericalHarmonics.getIrradianceCoefficients, in linear RGB.
+uniform vec3 u_SphericalHarmonics[9];
+
+// Captured environment, see EnvironmentTextures: a cube map, or an octahedral 2D texture when
+// u_Octahedral is 1. Its FaceFormat.getShaderId(): 0 RGBA8888, 1 RGBM, 2 RGBE, 3 RGB565.
+uniform samplerCube u_EnvironmentMap;
+uniform sampler2D u_OctahedralMap;
+uniform int u_Octahedral;
+uniform int u_FaceFormat;
+// Mip bias matching the material roughness, and the weight of the reflection, 0 without a map.
+uniform vec2 u_EnvironmentParameters;
+uniform vec3 u_CameraPosition;
+
+varying vec3 v_ViewPosition;
+varying vec3 v_ViewNormal;
+varying vec3 v_WorldNormal;
+varying vec3 v_WorldPosition;
+varying vec2 v_TexCoord;
+
+const float kRgbmRange = 8.0;
+
+vec3 irradiance(vec3 n) {
+    return u_SphericalHarmonics[0]
+            + u_SphericalHarmonics[1] * n.y
+            + u_SphericalHarmonics[2] * n.z
+            + u_SphericalHarmonics[3] * n.x
+            + u_SphericalHarmonics[4] * (n.x * n.y)
+            + u_SphericalHarmonics[5] * (n.y * n.z)
+            + u_SphericalHarmonics[6] * (3.0 * n.z * n.z - 1.0)
+            + u_SphericalHarmonics[7] * (n.x * n.z)
+            + u_SphericalHarmonics[8] * (n.x * n.x - n.y * n.y);
+}
+
+// Texture coordinates of the world direction dir in EnvironmentLayout.OCTAHEDRAL.
+vec2 octahedralCoordinates(vec3 dir) {
+    vec2 face = -dir.xz / (abs(dir.x) + abs(dir.y) + abs(dir.z));
+    vec2 signs = step(0.0, face) * 2.0 - 1.0;
+    vec2 folded = (1.0 - abs(face.yx)) * signs;
+    face = mix(face, folded, step(dir.y, 0.0));
+    return vec2(face.x + 1.0, 1.0 - face.y) * 0.5;
+}
+
+// Linear radiance of the environment in the world direction dir.
+vec3 environment(vec3 dir, float bias) {
+    vec4 texel;
+    if (u_Octahedral == 1) {
+        texel = texture2D(u_OctahedralMap, octahedralCoordinates(dir), bias);
+    } else {
+        texel = textureCube(u_EnvironmentMap, dir, bias);
+    }
+    if (u_FaceFormat == 1) {
+        return texel.rgb * texel.a * kRgbmRange;
+    } else if (u_FaceFormat == 2) {
+        return (texel.rgb * 255.0 + 0.5) / 256.0 * exp2(floor(texel.a * 255.0 + 0.5) - 128.0);
+    }
+    return pow(texel.rgb, vec3(2.2));
+}
+
+void main() {
+    // We support approximate sRGB gamma.
+    const float kGamma = 0.4545454;
+    const float kInverseGamma = 2.2;
+    const float kInversePi = 0.3183099;
+
+    vec3 viewLightDirection = u_LightingParameters.xyz;
+
+    float materialDiffuse = u_MaterialParameters.y;
+    float materialSpecular = u_MaterialParameters.z;
+    float materialSpecularPower = u_MaterialParameters.w;
+
+    // Normalize varying parameters, because they are linearly interpolated in the vertex shader.
+    vec3 viewFragmentDirection = normalize(v_ViewPosition);
+    vec3 viewNormal = normalize(v_ViewNormal);
+    vec3 worldNormal = normalize(v_WorldNormal);
+
+    // Apply inverse SRGB gamma to the texture before making lighting calculations.
+    // Flip the y-texture coordinate to address the texture from top-left.
+    vec4 objectColor = texture2D(u_Texture, vec2(v_TexCoord.x, 1.0 - v_TexCoord.y));
+    objectColor.rgb = pow(objectColor.rgb, vec3(kInverseGamma));
+
+    // Lambertian reflection of the captured environment. It already carries the camera exposure,
+    // so neither an ambient term nor color correction is applied on top.
+    vec3 diffuse = materialDiffuse * kInversePi * max(irradiance(worldNormal), vec3(0.0));
+
+    // Compute specular light.
+    vec3 reflectedLightDirection = reflect(viewLightDirection, viewNormal);
+    float specularStrength = max(0.0, dot(viewFragmentDirection, reflectedLightDirection));
+    vec3 specular = u_LightColor * materialSpecular *
+            pow(specularStrength, materialSpecularPower);
+
+    // Glossy reflection of the environment, with the Fresnel term of a dielectric.
+    vec3 worldViewDirection = normalize(v_WorldPosition - u_CameraPosition);
+    vec3 worldReflection = reflect(worldViewDirection, worldNormal);
+    float fresnel = 0.04 + 0.96 * pow(1.0 - max(0.0, dot(-worldViewDirection, worldNormal)), 5.0);
+    specular += u_EnvironmentParameters.y * materialSpecular * fresnel *
+            environment(worldReflection, u_EnvironmentParameters.x);
+
+    vec3 color = objectColor.rgb * diffuse + specular;
+    // Apply SRGB gamma before writing the fragment color.
+    gl_FragColor.rgb = pow(color, vec3(kGamma));
+    gl_FragColor.a = objectColor.a;
+}
@@ -16,7 +16,22 @@ precision mediump float;
 varying vec2 v_TexCoord;
 uniform sampler2D sTexture;
 
+// FaceFormat.getShaderId() of the texture: 0 RGBA8888, 1 RGBM, 2 RGBE, 3 RGB565.
+uniform int u_FaceFormat;
+
+const float kRgbmRange = 8.0;
+const float kGamma = 2.2;
 
 void main() {
-    gl_FragColor = texture2D(sTexture, v_TexCoord);
+    vec4 texel = texture2D(sTexture, v_TexCoord);
+    if (u_FaceFormat == 1) {
+        vec3 linear = texel.rgb * texel.a * kRgbmRange;
+        gl_FragColor = vec4(pow(clamp(linear, 0.0, 1.0), vec3(1.0 / kGamma)), 1.0);
+    } else if (u_FaceFormat == 2) {
+        vec3 linear = (texel.rgb * 255.0 + 0.5) / 256.0 * exp2(floor(texel.a * 255.0 + 0.5) - 128.0);
+        gl_FragColor = vec4(pow(clamp(linear, 0.0, 1.0), vec3(1.0 / kGamma)), 1.0);
+    } else {
+        // Stored as sRGB already
+        gl_FragColor = texel;
+    }
 }
@@ -1,163 +1,945 @@
 package com.google.ar.core.examples.java.common.rendering;
 
-import android.graphics.Bitmap;
-import android.media.Image;
-import android.opengl.GLES20;
-import android.opengl.GLUtils;
-import android.util.Log;
-
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-
-import glm.mat4x4.Mat4;
-import glm.vec2.Vec2;
-import glm.vec3.Vec3;
-import glm.vec4.Vec4;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+/**
+ * Captures the surroundings into environment faces by projecting camera frames onto them, six
+ * cube faces or a single octahedral face depending on the {@link EnvironmentLayout}. Plain Java,
+ * the faces are uploaded to OpenGL by {@link EnvironmentTextures}.
+ */
 public class AREnvironment {
-  private static final int SIZE = 64;
-  private static final int HALF_SIZE = SIZE / 2;
-  private static final int NUM_FACES = 6;
-  private static final int SKIP = 15;
+  /**
+   * Side of a cube face by default. Other layouts are sized for about the same texel size, see
+   * {@link EnvironmentLayout#getFaceSize(int)}.
+   */
+  public static final int DEFAULT_CUBE_SIZE = 64;
+  /** Range of cube face sides an environment can be created with, both powers of two. */
+  public static final int MIN_CUBE_SIZE = 16;
+  public static final int MAX_CUBE_SIZE = 256;
+  /** Number of faces of the cube layout. */
+  public static final int NUM_FACES = 6;
+  // Camera pixels per side of a thumbnail pixel. Every thumbnail pixel is a sample cell, and the
+  // default stride in cells samples every 16th pixel.
+  private static final int CELL_SIZE = 4;
+  private static final int DEFAULT_STRIDE = 4;
+  private static final int DEFAULT_SAMPLE_BUDGET = 2048;
+  private static final int TILES_PER_THREAD = 2;
+  private static final float TEMPORAL_DECAY = 0.9f;
+
+  /** How camera frames are mapped onto the faces. */
+  public enum CaptureMode {
+    /**
+     * Walks the camera thumbnail on a grid of sample cells and writes each sample to the texel it
+     * lands on. The grid stride adapts per image region to the coverage of the texels it hits,
+     * see {@link #setAdaptiveSampling(boolean)}. Cost is capped by the sample budget, and leaves
+     * holes where samples are sparse.
+     */
+    SCATTER,
+    /**
+     * Walks every texel of every face and fetches its color from the camera thumbnail if it is
+     * inside the camera frustum. Cost scales with the face size, and the visible cone is filled
+     * without holes.
+     */
+    GATHER
+  }
+
+  private final EnvironmentLayout layout;
+  private final int size;
+  private final int faceCount;
 
+  // In the cube layout:
   // Right: 0
   // Left: 1
   // Up: 2
   // Bottom: 3
   // Back: 4
   // Front: 5
-  Texture[] textures;
-  Bitmap[] textureBitmaps;
+  //
+  // Each face is size * size texels, row-major from the top-left. A texel is an RGBA8888 color
+  // packed as 0xAABBGGRR, so a little-endian IntBuffer of it can be handed to glTexImage2D as
+  // GL_RGBA / GL_UNSIGNED_BYTE without conversion.
+  final int[][] faces;
+
+  // Tiles changed since the faces were last copied out with copyFaces().
+  private final DirtyTiles dirtyTiles;
+
+  // Linear running average behind the faces; the faces hold its sRGB encoding.
+  private final RadianceAccumulator accumulator;
+
+  // Fills the texels that were never observed from the ones that were.
+  private final PushPullFiller filler;
+  private final float[] radiance = new float[3];
+  private final float[] previousRadiance = new float[3];
+
+  // Spherical harmonics projection and dominant light of the accumulated radiance, kept in sync
+  // texel by texel.
+  private final SphericalHarmonics irradiance = new SphericalHarmonics();
+  private final DominantLight light = new DominantLight();
+  private final float[] texelSolidAngles;
+  private final float[] texelDirection = new float[3];
+
+  // Roughness-indexed mip chain of the faces, for glossy materials.
+  private final EnvironmentPrefilter prefilter;
+
+  // The sample each texel got in the current update, 0 where there was none.
+  private final int[] frameSamples;
+
+  // Temporary matrices and vectors allocated here so that update() does not allocate per sample.
+  private final float[] invProj = new float[16];
+  private final float[] ndcPoint = new float[4];
+  private final float[] cameraPoint = new float[4];
+  private final float[] viewRotation = new float[9];
+
+  // Normalized camera-space ray of every sample cell, three floats per cell. The
+  // table only depends on the projection and the image size, so it is rebuilt when either
+  // changes and each update only has to rotate the cached rays into world space.
+  private float[] rayTable = new float[0];
+  private final float[] rayTableProj = new float[16];
+  private int rayTableWidth = -1;
+  private int rayTableHeight = -1;
+  private int rayTableColumns;
+
+  // Stride of every image region for the current update, from the coverage of its texels.
+  private final SamplingPlan samplingPlan = new SamplingPlan();
+  private boolean adaptiveSampling = true;
+  private int sampleBudget = DEFAULT_SAMPLE_BUDGET;
+
+  // Image being projected by the current update, shared read-only by the tiles.
+  private int imageWidth;
+  private int imageHeight;
+
+  // Area average of every CELL_SIZE * CELL_SIZE block of the camera image. Both capture modes
+  // sample it instead of single camera pixels, which would alias.
+  private final CameraDownsampler downsampler = new CameraDownsampler(CELL_SIZE);
+  private float[] thumbnail;
+  private int thumbnailWidth;
+
+  // Unnormalized world direction through the center of every texel, three floats per texel in
+  // the same order as the faces. Only needed by CaptureMode.GATHER, so it is built lazily.
+  private float[] texelDirections;
+  private float[] projection;
+
+  private CaptureMode captureMode = CaptureMode.SCATTER;
+  private FaceFormat faceFormat = FaceFormat.RGBA8888;
+  private int threadCount = 1;
+  private ForkJoinPool pool;
+  private ProjectionTile[] tiles;
+  private final TileDispatch tileDispatch = new TileDispatch();
 
   public AREnvironment() {
-    textures = new Texture[NUM_FACES];
-    textureBitmaps = new Bitmap[NUM_FACES];
-    for (int i = 0; i < NUM_FACES; i++) {
-      textures[i] = new Texture(SIZE, SIZE);
-      textureBitmaps[i] = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+    this(EnvironmentLayout.CUBE);
+  }
+
+  public AREnvironment(EnvironmentLayout layout) {
+    this(layout, DEFAULT_CUBE_SIZE);
+  }
+
+  /**
+   * Creates an environment whose texels are as large as those of cube faces of side
+   * {@code cubeSize}, which must pass {@link #isValidCubeSize(int)}. Memory and the cost of
+   * gathering, filling and prefiltering grow with its square.
+   * The faces are the finest level of the pyramid kept by {@link #getPrefilter()}, the coarser
+   * levels follow them lazily in {@link #prefilter(long)} and {@link #copyFaces(FaceBuffers)}.
+   */
+  public AREnvironment(EnvironmentLayout layout, int cubeSize) {
+    assert(isValidCubeSize(cubeSize));
+    this.layout = layout;
+    size = layout.getFaceSize(cubeSize);
+    faceCount = layout.getFaceCount();
+    faces = new int[faceCount][size * size];
+    dirtyTiles = new DirtyTiles(faceCount, size);
+    accumulator = new RadianceAccumulator(faceCount, size * size, TEMPORAL_DECAY);
+    filler = new PushPullFiller(layout, size, faces, dirtyTiles);
+    prefilter = new EnvironmentPrefilter(layout, size, faces);
+    texelSolidAngles = new float[size * size];
+    for (int y = 0; y < size; y++) {
+      for (int x = 0; x < size; x++) {
+        texelSolidAngles[y * size + x] = layout.getTexelSolidAngle(x, y, size);
+      }
     }
+    frameSamples = new int[faceCount * size * size];
+    tiles = new ProjectionTile[] { new ProjectionTile() };
+    // Texture storage starts out undefined, so the first upload has to cover everything
+    dirtyTiles.markAll();
   }
 
-  public Texture getTexture(int i) {
-    return this.textures[i];
+  /** Returns the texels of a face, see {@link #faces} for the layout. */
+  public int[] getFace(int i) {
+    return faces[i];
   }
 
-  public void update(Image cameraImage, float[] projMat, float[] viewMat) {
+  /**
+   * Sets how many threads project the camera image. With more than one thread the image is split
+   * into row tiles that are projected in parallel on a fork-join pool, each tile into its own face
+   * buffers, and the tiles are merged in row order so the result is identical to the serial path.
+   * The tiles are reused as fork-join tasks, so dispatching them does not allocate either.
+   */
+  public void setThreadCount(int threadCount) {
+    assert(threadCount > 0);
+    if (threadCount == this.threadCount) {
+      return;
+    }
+    if (pool != null) {
+      pool.shutdown();
+      pool = null;
+    }
+    this.threadCount = threadCount;
+    if (threadCount > 1) {
+      pool = new ForkJoinPool(threadCount);
+    }
+    tiles = new ProjectionTile[threadCount * TILES_PER_THREAD];
+    for (int i = 0; i < tiles.length; i++) {
+      tiles[i] = new ProjectionTile();
+    }
+  }
+
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  /**
+   * Returns the running average the faces are resolved from. Its decay sets how quickly new
+   * samples replace old ones, 0 restores plain overwriting.
+   */
+  public RadianceAccumulator getAccumulator() {
+    return accumulator;
+  }
+
+  public void setCaptureMode(CaptureMode captureMode) {
+    this.captureMode = captureMode;
+  }
+
+  public CaptureMode getCaptureMode() {
+    return captureMode;
+  }
 
-    Log.d("Liby", "Updating AR Env");
+  public EnvironmentLayout getLayout() {
+    return layout;
+  }
+
+  /** Returns the number of faces, see {@link EnvironmentLayout#getFaceCount()}. */
+  public int getFaceCount() {
+    return faceCount;
+  }
+
+  /** Returns the side of a face in texels. */
+  public int getSize() {
+    return size;
+  }
+
+  /** Returns the number of levels of the face pyramid, including the faces themselves. */
+  public int getLevelCount() {
+    return prefilter.getLevelCount();
+  }
+
+  /** Returns whether an environment can be created with cube faces of side {@code cubeSize}. */
+  public static boolean isValidCubeSize(int cubeSize) {
+    return Integer.bitCount(cubeSize) == 1
+        && cubeSize >= MIN_CUBE_SIZE
+        && cubeSize <= MAX_CUBE_SIZE;
+  }
+
+  /**
+   * Sets how {@link #copyFaces(FaceBuffers)} encodes the texels. Must be called before any face
+   * buffers or {@link EnvironmentTextures} are created for this environment.
+   */
+  public void setFaceFormat(FaceFormat faceFormat) {
+    this.faceFormat = faceFormat;
+  }
+
+  public FaceFormat getFaceFormat() {
+    return faceFormat;
+  }
+
+  /**
+   * Enables choosing the sample stride per image region from the coverage of the texels the
+   * region lands on: dense where the texels are new, sparse where they are well covered, and
+   * skipped where they are saturated. When disabled, every 16th pixel is sampled. Only affects
+   * {@link CaptureMode#SCATTER}.
+   */
+  public void setAdaptiveSampling(boolean adaptiveSampling) {
+    this.adaptiveSampling = adaptiveSampling;
+  }
+
+  public boolean isAdaptiveSampling() {
+    return adaptiveSampling;
+  }
+
+  /** Caps the number of camera samples per adaptive update. */
+  public void setSampleBudget(int sampleBudget) {
+    assert(sampleBudget > 0);
+    this.sampleBudget = sampleBudget;
+  }
+
+  public int getSampleBudget() {
+    return sampleBudget;
+  }
+
+  /** Returns the number of camera samples planned by the last update in scatter mode. */
+  public int getSampleCount() {
+    return samplingPlan.getSampleCount();
+  }
+
+  /** Creates a face snapshot that {@link #copyFaces(FaceBuffers)} can fill. */
+  public FaceBuffers createFaceBuffers() {
+    return new FaceBuffers(faceCount, size, getLevelCount(), faceFormat);
+  }
+
+  /**
+   * Projects a camera frame onto the faces. Only touches CPU-side data, so it may run on any
+   * thread as long as calls are not concurrent.
+   */
+  public void update(CameraFrame frame) {
+    final long traceStart = StageTimings.ENABLED ? System.nanoTime() : 0;
 
     // Initiate image related values
-    int width = cameraImage.getWidth();
-    int height = cameraImage.getHeight();
-    int halfWidth = width / 2;
-    int halfHeight = height / 2;
+    imageWidth = frame.getWidth();
+    imageHeight = frame.getHeight();
+    long stageStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+    downsampler.downsample(frame);
+    thumbnail = downsampler.getPixels();
+    thumbnailWidth = downsampler.getWidth();
+    if (StageTimings.ENABLED) {
+      StageTimings.record(TraceRecorder.Stage.DOWNSAMPLE, stageStart);
+    }
+
+    float[] projMat = frame.getProjectionMatrix();
+    float[] viewMat = frame.getViewMatrix();
+    projection = projMat;
+
+    // Initiate rays. The inverse view of a rotation-only view matrix is its transpose, so a
+    // camera ray r maps to the world direction R^T * r, where R is the upper 3x3 of viewMat.
+    if (captureMode == CaptureMode.SCATTER) {
+      if (!updateRayTable(projMat, imageWidth, imageHeight)) {
+        // A degenerate projection has no rays to project along, skip the frame
+        return;
+      }
+    } else if (texelDirections == null) {
+      buildTexelDirections();
+    }
+    viewRotation[0] = viewMat[0];
+    viewRotation[1] = viewMat[1];
+    viewRotation[2] = viewMat[2];
+    viewRotation[3] = viewMat[4];
+    viewRotation[4] = viewMat[5];
+    viewRotation[5] = viewMat[6];
+    viewRotation[6] = viewMat[8];
+    viewRotation[7] = viewMat[9];
+    viewRotation[8] = viewMat[10];
+
+    if (captureMode == CaptureMode.SCATTER) {
+      stageStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+      planSampling();
+      if (StageTimings.ENABLED) {
+        StageTimings.record(
+            TraceRecorder.Stage.PLAN, stageStart, samplingPlan.getSampleCount());
+      }
+    }
+
+    // Split the region rows, or the texel rows of all faces, evenly between the tiles
+    int rows =
+        captureMode == CaptureMode.SCATTER ? samplingPlan.getRegionRows() : faceCount * size;
+    int tileCount = Math.min(tiles.length, rows);
+    for (int t = 0; t < tileCount; t++) {
+      tiles[t].setRows(rows * t / tileCount, rows * (t + 1) / tileCount);
+    }
+
+    if (pool == null || tileCount == 1) {
+      for (int t = 0; t < tileCount; t++) {
+        tiles[t].project();
+      }
+    } else {
+      tileDispatch.reinitialize();
+      tileDispatch.tileCount = tileCount;
+      pool.invoke(tileDispatch);
+    }
+
+    // Merge in row order, later tiles overwrite earlier ones just like later samples do. This
+    // keeps one sample per texel per update whatever the number of tiles.
+    stageStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+    Arrays.fill(frameSamples, 0);
+    for (int t = 0; t < tileCount; t++) {
+      int[] pixels = tiles[t].facePixels;
+      for (int index = 0; index < pixels.length; index++) {
+        if (pixels[index] != 0) {
+          frameSamples[index] = pixels[index];
+        }
+      }
+    }
+
+    // Blend the samples into the running average and resolve the touched texels
+    for (int face = 0, index = 0; face < faceCount; face++) {
+      int[] target = faces[face];
+      for (int texel = 0; texel < size * size; texel++, index++) {
+        if (frameSamples[index] == 0) {
+          continue;
+        }
+        accumulator.getRadiance(face, texel, previousRadiance);
+        int rgba = accumulator.add(face, texel, frameSamples[index]);
+        if (rgba != target[texel]) {
+          target[texel] = rgba;
+          dirtyTiles.markTexel(face, texel % size, texel / size);
+        }
+        accumulator.getRadiance(face, texel, radiance);
+        filler.setTexel(face, texel, radiance[0], radiance[1], radiance[2], true);
+        updateLighting(face, texel);
+      }
+    }
+    light.estimate();
+    if (StageTimings.ENABLED) {
+      StageTimings.record(TraceRecorder.Stage.MERGE, stageStart);
+      StageTimings.record(TraceRecorder.Stage.UPDATE, traceStart);
+    }
+  }
+
+  /**
+   * Rebuilds everything derived from the accumulator after its texels were replaced with {@link
+   * RadianceAccumulator#set}, e.g. by {@link EnvironmentCache}: the faces, the fill, the
+   * irradiance and the dominant light. Every tile is marked dirty. Meant for an environment that
+   * was not updated yet; must not run concurrently with {@link #update(CameraFrame)}.
+   */
+  public void resolveAccumulated() {
+    irradiance.clear();
+    light.clear();
+    Arrays.fill(previousRadiance, 0);
+    for (int face = 0; face < faceCount; face++) {
+      int[] target = faces[face];
+      for (int texel = 0; texel < size * size; texel++) {
+        accumulator.getRadiance(face, texel, radiance);
+        boolean observed = accumulator.getWeight(face, texel) > 0;
+        if (observed) {
+          target[texel] = RadianceAccumulator.encode(radiance[0], radiance[1], radiance[2]);
+          updateLighting(face, texel);
+        }
+        filler.setTexel(face, texel, radiance[0], radiance[1], radiance[2], observed);
+      }
+    }
+    dirtyTiles.markAll();
+    light.estimate();
+  }
+
+  /**
+   * Moves the texel's contribution to the irradiance and the dominant light from
+   * previousRadiance to radiance.
+   */
+  private void updateLighting(int face, int texel) {
+    layout.getTexelDirection(face, texel % size, texel / size, size, texelDirection);
+    float invLength = 1.0f / (float) Math.sqrt(texelDirection[0] * texelDirection[0]
+        + texelDirection[1] * texelDirection[1] + texelDirection[2] * texelDirection[2]);
+    float dirX = texelDirection[0] * invLength;
+    float dirY = texelDirection[1] * invLength;
+    float dirZ = texelDirection[2] * invLength;
+    irradiance.add(
+        dirX, dirY, dirZ,
+        radiance[0] - previousRadiance[0],
+        radiance[1] - previousRadiance[1],
+        radiance[2] - previousRadiance[2],
+        texelSolidAngles[texel]);
+    light.replace(
+        dirX, dirY, dirZ,
+        previousRadiance[0], previousRadiance[1], previousRadiance[2],
+        radiance[0], radiance[1], radiance[2],
+        texelSolidAngles[texel]);
+  }
+
+  /**
+   * Returns the spherical harmonics projection of the observed radiance, in world space. Texels
+   * not observed yet contribute nothing.
+   */
+  public SphericalHarmonics getIrradiance() {
+    return irradiance;
+  }
+
+  /** Returns the dominant light of the observed radiance, re-estimated after every update. */
+  public DominantLight getDominantLight() {
+    return light;
+  }
+
+  /**
+   * Propagates the observed texels into the unobserved ones, for at most about
+   * {@code budgetNanos}. Work left over continues on the next call. Must not run concurrently
+   * with {@link #update(CameraFrame)}.
+   *
+   * @return true if the filled texels are up to date.
+   */
+  public boolean fillHoles(long budgetNanos) {
+    return filler.fill(budgetNanos);
+  }
+
+  /**
+   * Brings the prefiltered mip chain up to date with the faces, for at most about
+   * {@code budgetNanos}. Work left over continues on the next call. Must not run concurrently
+   * with {@link #update(CameraFrame)} or {@link #fillHoles(long)}.
+   *
+   * @return true if every level is up to date.
+   */
+  public boolean prefilter(long budgetNanos) {
+    prefilter.sync(dirtyTiles);
+    return prefilter.filter(budgetNanos);
+  }
+
+  /** Returns the prefiltered mip chain, see {@link #prefilter(long)}. */
+  public EnvironmentPrefilter getPrefilter() {
+    return prefilter;
+  }
+
+  /**
+   * Picks the sample stride of every image region. A region's confidence is the lowest
+   * accumulated weight, relative to the most a texel can reach, among the texels hit by its
+   * corner and center cells.
+   */
+  private void planSampling() {
+    int columns = rayTableColumns;
+    int rows = rayTable.length / 3 / columns;
+    samplingPlan.setCellGrid(columns, rows);
+    if (!adaptiveSampling) {
+      samplingPlan.planUniform(DEFAULT_STRIDE);
+      return;
+    }
+
+    float fullWeight = 1 / (1 - accumulator.getDecay());
+    float[] confidences = samplingPlan.getConfidences();
+    int regionColumns = samplingPlan.getRegionColumns();
+    for (int region = 0; region < confidences.length; region++) {
+      int row0 = (region / regionColumns) * SamplingPlan.REGION_CELLS;
+      int column0 = (region % regionColumns) * SamplingPlan.REGION_CELLS;
+      int row1 = Math.min(row0 + SamplingPlan.REGION_CELLS, rows) - 1;
+      int column1 = Math.min(column0 + SamplingPlan.REGION_CELLS, columns) - 1;
+      float weight = Math.min(
+          Math.min(cellWeight(row0, column0), cellWeight(row0, column1)),
+          Math.min(cellWeight(row1, column0), cellWeight(row1, column1)));
+      weight = Math.min(weight, cellWeight((row0 + row1) / 2, (column0 + column1) / 2));
+      confidences[region] = weight / fullWeight;
+    }
+    samplingPlan.plan(sampleBudget);
+  }
 
-    Image.Plane[] planes = cameraImage.getPlanes();
-    ByteBuffer yPlane = planes[0].getBuffer();
-    ByteBuffer uPlane = planes[1].getBuffer();
-    ByteBuffer vPlane = planes[2].getBuffer();
-
-    // Initiate matrices
-    Mat4 view = new Mat4(viewMat);
-    view.v30(0);
-    view.v31(0);
-    view.v32(0);
-
-    Mat4 invProjView = (new Mat4(projMat)).times(view).inverse();
-
-    final int total = yPlane.capacity();
-    final int uvCapacity = uPlane.capacity();
-
-    // Set values
-    int yPos = 0, uvPos = 0;
-    for (int i = 0; i < height; i += SKIP) {
-      for (int j = 0; j < width; j += SKIP) {
-        if (uvPos >= uvCapacity - 1) {
-          break;
-        } else if (yPos >= total) {
-          break;
+  /** Returns the accumulated weight of the texel the given sample cell lands on. */
+  private float cellWeight(int row, int column) {
+    int ray = (row * rayTableColumns + column) * 3;
+    float rayX = rayTable[ray], rayY = rayTable[ray + 1], rayZ = rayTable[ray + 2];
+    float[] r = viewRotation;
+    float dirX = r[0] * rayX + r[1] * rayY + r[2] * rayZ;
+    float dirY = r[3] * rayX + r[4] * rayY + r[5] * rayZ;
+    float dirZ = r[6] * rayX + r[7] * rayY + r[8] * rayZ;
+    int index = layout.getTexel(dirX, dirY, dirZ, size);
+    return accumulator.getWeight(index / (size * size), index % (size * size));
+  }
+
+  /**
+   * Projects the region rows [rowBegin, rowEnd) of the current camera image onto the faces, each
+   * region at the stride picked by planSampling().
+   *
+   * @param facePixels Receives the color of every sampled texel, all faces back to back.
+   *     Texels that got no sample are left untouched.
+   */
+  private void projectRows(int rowBegin, int rowEnd, int[] facePixels) {
+    final int columns = rayTableColumns;
+    final int rows = rayTable.length / 3 / columns;
+    final int regionColumns = samplingPlan.getRegionColumns();
+
+    for (int regionRow = rowBegin; regionRow < rowEnd; regionRow++) {
+      int row0 = regionRow * SamplingPlan.REGION_CELLS;
+      int row1 = Math.min(row0 + SamplingPlan.REGION_CELLS, rows);
+      for (int regionColumn = 0; regionColumn < regionColumns; regionColumn++) {
+        int stride = samplingPlan.getStride(regionRow * regionColumns + regionColumn);
+        if (stride == 0) {
+          continue;
         }
+        int column0 = regionColumn * SamplingPlan.REGION_CELLS;
+        int column1 = Math.min(column0 + SamplingPlan.REGION_CELLS, columns);
+        for (int row = row0; row < row1; row += stride) {
+          projectCells(row, column0, column1, stride, facePixels);
+        }
+      }
+    }
+  }
+
+  /** Projects every stride-th sample cell of [column0, column1) in one row of cells. */
+  private void projectCells(int row, int column0, int column1, int stride, int[] facePixels) {
+    final EnvironmentLayout layout = this.layout;
+    final int size = this.size;
+    final float r00 = viewRotation[0], r01 = viewRotation[1], r02 = viewRotation[2];
+    final float r10 = viewRotation[3], r11 = viewRotation[4], r12 = viewRotation[5];
+    final float r20 = viewRotation[6], r21 = viewRotation[7], r22 = viewRotation[8];
 
-        // Get the rgba values
-        yPos = i * width + j;
-        uvPos = ((i >> 1) * width) + (j / 2 * 2);
-        int y = yPlane.get(yPos) & 0xff;
-        int u = (uPlane.get(uvPos) & 0xff) - 128;
-        int v = (vPlane.get(uvPos + 1) & 0xff) - 128;
-        int argb = yuvToARGB(y, u, v);
+    int ray = (row * rayTableColumns + column0) * 3;
+    for (int column = column0; column < column1; column += stride, ray += stride * 3) {
+      // Get the rgba values
+      int rgba = sampleThumbnail(row, column);
 
-        // X and Y value in
-        float imgx = (float) (j + halfWidth) / halfWidth;
-        float imgy = (float) (-i + halfHeight) / halfHeight;
+      // Rotate the ray into the world and update the texel it lands on
+      float rayX = rayTable[ray], rayY = rayTable[ray + 1], rayZ = rayTable[ray + 2];
+      float dirX = r00 * rayX + r01 * rayY + r02 * rayZ;
+      float dirY = r10 * rayX + r11 * rayY + r12 * rayZ;
+      float dirZ = r20 * rayX + r21 * rayY + r22 * rayZ;
+      facePixels[layout.getTexel(dirX, dirY, dirZ, size)] = rgba;
+    }
+  }
 
-        // First we get the bitmap to draw
-        Vec3 pxDir = new Vec3(invProjView.times(new Vec4(imgx, imgy, 1, 1))).normalize();
-        int bitmapIndex = this.getDirectionFace(pxDir);
+  /**
+   * Fills the texel rows [rowBegin, rowEnd) of the faces, counted across all faces, from the
+   * current camera image. Texels outside the camera frustum are left untouched.
+   */
+  private void gatherRows(int rowBegin, int rowEnd, int[] facePixels) {
+    final float halfWidth = imageWidth / 2;
+    final float halfHeight = imageHeight / 2;
+    final float[] p = projection;
+    // Camera-space direction is R * d, the transpose of the rotation used by projectRows
+    final float r00 = viewRotation[0], r01 = viewRotation[3], r02 = viewRotation[6];
+    final float r10 = viewRotation[1], r11 = viewRotation[4], r12 = viewRotation[7];
+    final float r20 = viewRotation[2], r21 = viewRotation[5], r22 = viewRotation[8];
 
-        // Then we get the position to draw on that bitmap
-        Vec2 faceXY = this.getXYOnFace(pxDir, bitmapIndex);
-        int bitmapX = (int) (faceXY.x * HALF_SIZE + HALF_SIZE);
-        int bitmapY = (int) (-faceXY.y * HALF_SIZE + HALF_SIZE);
+    for (int row = rowBegin; row < rowEnd; row++) {
+      int texel = row * size;
+      for (int x = 0; x < size; x++, texel++) {
+        int d = texel * 3;
+        float dirX = texelDirections[d], dirY = texelDirections[d + 1];
+        float dirZ = texelDirections[d + 2];
+        float camX = r00 * dirX + r01 * dirY + r02 * dirZ;
+        float camY = r10 * dirX + r11 * dirY + r12 * dirZ;
+        float camZ = r20 * dirX + r21 * dirY + r22 * dirZ;
 
-        Log.d("Liby", "Face " + bitmapIndex + ", x = " + bitmapX + ", y = " + bitmapY + ", color = " + argb);
+        // Project the direction as a point at infinity, behind the camera is never visible
+        float clipW = p[3] * camX + p[7] * camY + p[11] * camZ;
+        if (clipW <= 0) {
+          continue;
+        }
+        float imgx = (p[0] * camX + p[4] * camY + p[8] * camZ) / clipW;
+        float imgy = (p[1] * camX + p[5] * camY + p[9] * camZ) / clipW;
 
-        // Update the bitmap
-        textureBitmaps[bitmapIndex].setPixel(bitmapX, bitmapY, argb);
+        // Outside the frustum, or invert the pixel to NDC mapping used by updateRayTable
+        if (imgx < -1 || imgx >= 1 || imgy <= -1 || imgy > 1) {
+          continue;
+        }
+        int j = Math.min((int) (imgx * halfWidth + halfWidth), imageWidth - 1);
+        int i = Math.min((int) (halfHeight - imgy * halfHeight), imageHeight - 1);
+        facePixels[texel] = sampleThumbnail(i / CELL_SIZE, j / CELL_SIZE);
       }
     }
   }
 
-  public void drawToTexture() {
-    for (int i = 0; i < NUM_FACES; i++) {
-      textures[i].load(textureBitmaps[i]);
+  /** Returns the thumbnail pixel (row, column) packed like the faces. */
+  private int sampleThumbnail(int row, int column) {
+    int i = (row * thumbnailWidth + column) * 3;
+    return RadianceAccumulator.encode(thumbnail[i], thumbnail[i + 1], thumbnail[i + 2]);
+  }
+
+  /** Builds the world direction through the center of every texel of every face. */
+  private void buildTexelDirections() {
+    float[] directions = new float[faceCount * size * size * 3];
+    float[] dir = new float[3];
+    int d = 0;
+    for (int face = 0; face < faceCount; face++) {
+      for (int y = 0; y < size; y++) {
+        for (int x = 0; x < size; x++, d += 3) {
+          layout.getTexelDirection(face, x, y, size, dir);
+          directions[d] = dir[0];
+          directions[d + 1] = dir[1];
+          directions[d + 2] = dir[2];
+        }
+      }
     }
+    texelDirections = directions;
   }
 
-  public int getDirectionFace(Vec3 dir) {
-    float x = Math.abs(dir.x), y = Math.abs(dir.y), z = Math.abs(dir.z);
+  /**
+   * Projects the first tileCount tiles on the pool: forks all but the first, projects that one on
+   * the calling worker and joins the rest. Reused across updates like the tiles.
+   */
+  private class TileDispatch extends RecursiveAction {
+    int tileCount;
+
+    @Override
+    protected void compute() {
+      for (int t = 1; t < tileCount; t++) {
+        tiles[t].reinitialize();
+        tiles[t].fork();
+      }
+      tiles[0].project();
+      for (int t = 1; t < tileCount; t++) {
+        tiles[t].join();
+      }
+    }
+  }
+
+  /** A band of sample rows projected into its own face buffers. */
+  private class ProjectionTile extends RecursiveAction {
+    final int[] facePixels = new int[faceCount * size * size];
+    int rowBegin;
+    int rowEnd;
+
+    void setRows(int rowBegin, int rowEnd) {
+      this.rowBegin = rowBegin;
+      this.rowEnd = rowEnd;
+    }
+
+    @Override
+    protected void compute() {
+      project();
+    }
+
+    void project() {
+      final long traceStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+      // Samples are always opaque, so zero marks a texel without a sample
+      Arrays.fill(facePixels, 0);
+      if (captureMode == CaptureMode.SCATTER) {
+        projectRows(rowBegin, rowEnd, facePixels);
+      } else {
+        gatherRows(rowBegin, rowEnd, facePixels);
+      }
+      if (StageTimings.ENABLED) {
+        StageTimings.record(TraceRecorder.Stage.PROJECT_TILE, traceStart);
+      }
+    }
+  }
+
+  /**
+   * Rebuilds the camera-space ray of every sample cell if the projection or the image size changed
+   * since the last call.
+   *
+   * @return false if the projection cannot be inverted, in which case the table stays invalid
+   *     and the next call tries again.
+   */
+  private boolean updateRayTable(float[] projMat, int width, int height) {
+    if (width == rayTableWidth && height == rayTableHeight
+        && Arrays.equals(projMat, rayTableProj)) {
+      return true;
+    }
+    if (!MatrixMath.invertM(invProj, projMat)) {
+      rayTableWidth = -1;
+      rayTableHeight = -1;
+      return false;
+    }
+    System.arraycopy(projMat, 0, rayTableProj, 0, 16);
+    rayTableWidth = width;
+    rayTableHeight = height;
+
+    int halfWidth = width / 2;
+    int halfHeight = height / 2;
+    int rows = (height + CELL_SIZE - 1) / CELL_SIZE;
+    int columns = (width + CELL_SIZE - 1) / CELL_SIZE;
+    rayTableColumns = columns;
+    if (rayTable.length != rows * columns * 3) {
+      rayTable = new float[rows * columns * 3];
+    }
+
+    int ray = 0;
+    // Through the center of every cell
+    for (int i = CELL_SIZE / 2; i < rows * CELL_SIZE; i += CELL_SIZE) {
+      for (int j = CELL_SIZE / 2; j < columns * CELL_SIZE; j += CELL_SIZE, ray += 3) {
+        // Pixel to normalized device coordinates, [-1, 1] across the image with y up
+        ndcPoint[0] = (float) (j - halfWidth) / halfWidth;
+        ndcPoint[1] = (float) (-i + halfHeight) / halfHeight;
+        ndcPoint[2] = 1;
+        ndcPoint[3] = 1;
+
+        MatrixMath.multiplyMV(cameraPoint, invProj, ndcPoint);
+        float invLength = 1.0f / (float) Math.sqrt(cameraPoint[0] * cameraPoint[0]
+            + cameraPoint[1] * cameraPoint[1] + cameraPoint[2] * cameraPoint[2]);
+        rayTable[ray] = cameraPoint[0] * invLength;
+        rayTable[ray + 1] = cameraPoint[1] * invLength;
+        rayTable[ray + 2] = cameraPoint[2] * invLength;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Copies the current faces and their prefiltered levels into {@code buffers}, which must come
+   * from createFaceBuffers(), encoded in the face format and laid out as textures, see {@link
+   * EnvironmentLayout#isTextureFlippedX(int)}. The tiles and levels changed since the last copy
+   * are moved into the snapshot's dirty sets.
+   */
+  public void copyFaces(FaceBuffers buffers) {
+    for (int level = 0; level < buffers.getLevelCount(); level++) {
+      int side = size >> level;
+      for (int i = 0; i < faceCount; i++) {
+        ByteBuffer face = buffers.getLevel(level, i);
+        int[] texels = prefilter.getLevel(level, i);
+        int step = layout.isTextureFlippedX(i) ? -1 : 1;
+        face.clear();
+        for (int row = 0; row < side; row++) {
+          int sourceRow = layout.isTextureFlippedY(i) ? side - 1 - row : row;
+          int begin = sourceRow * side + (step < 0 ? side - 1 : 0);
+          encodeTexels(texels, begin, step, side, face);
+        }
+        face.flip();
+      }
+    }
+    // The dirty tiles are about to move out, so the prefilter has to see them first
+    prefilter.sync(dirtyTiles);
+    dirtyTiles.moveTo(buffers.getDirtyTiles());
+    prefilter.moveChangedLevels(buffers.getDirtyLevels());
+    irradiance.getIrradianceCoefficients(buffers.getIrradianceCoefficients());
+    light.getDirection(buffers.getLightDirection());
+    light.getColor(buffers.getLightColor());
+  }
+
+  /**
+   * Writes {@code count} sRGB texels packed as 0xAABBGGRR into {@code out} in the face format,
+   * starting at {@code texels[begin]} and moving by {@code step}.
+   */
+  private void encodeTexels(int[] texels, int begin, int step, int count, ByteBuffer out) {
+    int end = begin + count * step;
+    switch (faceFormat) {
+      case RGBA8888:
+        for (int i = begin; i != end; i += step) {
+          out.putInt(texels[i]);
+        }
+        return;
+      case RGBM:
+        for (int i = begin; i != end; i += step) {
+          int texel = texels[i];
+          out.putInt(encodeRgbm(RadianceAccumulator.decode(texel),
+              RadianceAccumulator.decode(texel >> 8), RadianceAccumulator.decode(texel >> 16)));
+        }
+        return;
+      case RGBE:
+        for (int i = begin; i != end; i += step) {
+          int texel = texels[i];
+          out.putInt(encodeRgbe(RadianceAccumulator.decode(texel),
+              RadianceAccumulator.decode(texel >> 8), RadianceAccumulator.decode(texel >> 16)));
+        }
+        return;
+      case RGB565:
+        for (int i = begin; i != end; i += step) {
+          out.putShort(encodeRgb565(texels[i]));
+        }
+        return;
+      default:
+        throw new Error("Invalid face format " + faceFormat);
+    }
+  }
+
+  /**
+   * Packs a linear color as RGBM in 0xAABBGGRR: the color divided by M * RGBM_RANGE, with the
+   * smallest M that keeps the brightest channel in range stored in alpha.
+   */
+  public static int encodeRgbm(float r, float g, float b) {
+    float max = Math.max(Math.max(r, g), Math.max(b, 1e-6f)) / FaceFormat.RGBM_RANGE;
+    int m = Math.max(1, Math.min(255, (int) Math.ceil(max * 255)));
+    float scale = 255 * 255 / (m * FaceFormat.RGBM_RANGE);
+    return m << 24
+        | toByte(b * scale + 0.5f) << 16
+        | toByte(g * scale + 0.5f) << 8
+        | toByte(r * scale + 0.5f);
+  }
+
+  /**
+   * Packs a linear color as RGBE in 0xAABBGGRR: 8-bit mantissas of the color relative to 2^e,
+   * where e is the smallest exponent that keeps the brightest channel below 1, stored in alpha
+   * offset by 128. Black is all zero.
+   */
+  public static int encodeRgbe(float r, float g, float b) {
+    float max = Math.max(Math.max(r, g), b);
+    if (max < 1e-32f) {
+      return 0;
+    }
+    int exponent = Math.getExponent(max) + 1;
+    float scale = Math.scalb(256.0f, -exponent);
+    return Math.max(0, Math.min(255, exponent + 128)) << 24
+        | toByte(b * scale) << 16
+        | toByte(g * scale) << 8
+        | toByte(r * scale);
+  }
+
+  /** Drops the low bits of an sRGB texel packed as 0xAABBGGRR into GL_UNSIGNED_SHORT_5_6_5. */
+  public static short encodeRgb565(int rgba) {
+    int r = (rgba & 0xff) >> 3;
+    int g = ((rgba >> 8) & 0xff) >> 2;
+    int b = ((rgba >> 16) & 0xff) >> 3;
+    return (short) (r << 11 | g << 5 | b);
+  }
+
+  private static int toByte(float value) {
+    int i = (int) value;
+    return i < 0 ? 0 : (i > 255 ? 255 : i);
+  }
+
+  /** Returns the index of the cube face hit by the direction (x, y, z). */
+  public static int getDirectionFace(float dirX, float dirY, float dirZ) {
+    float x = Math.abs(dirX), y = Math.abs(dirY), z = Math.abs(dirZ);
     if (x > y) {
       if (x > z) {
-        return dir.x > 0 ? 0 : 1;
+        return dirX > 0 ? 0 : 1;
       } else {
-        return dir.z > 0 ? 4 : 5;
+        return dirZ > 0 ? 4 : 5;
       }
     } else {
       if (y > z) {
-        return dir.y > 0 ? 2 : 3;
+        return dirY > 0 ? 2 : 3;
       } else {
-        return dir.z > 0 ? 4 : 5;
+        return dirZ > 0 ? 4 : 5;
       }
     }
   }
 
-  public int sign(float n) {
+  public static int sign(float n) {
     return n > 0 ? 1 : -1;
   }
 
-  public Vec2 getXYOnFace(Vec3 dir, int face) {
-    float scale, x, y, z;
+  /**
+   * Projects the direction (x, y, z) onto the given cube face.
+   *
+   * @param out Receives the face coordinates in [-1, 1] as {x, y}.
+   */
+  public static void getXYOnFace(float dirX, float dirY, float dirZ, int face, float[] out) {
+    float scale;
     switch (face) {
       case 0: case 1:
-        scale = Math.abs(1.0f / dir.x);
-        y = sign(dir.x) * dir.y * scale;
-        z = sign(dir.x) * dir.z * scale;
-        return new Vec2(z, y);
+        scale = Math.abs(1.0f / dirX);
+        out[0] = sign(dirX) * dirZ * scale;
+        out[1] = sign(dirX) * dirY * scale;
+        return;
       case 2: case 3:
-        scale = Math.abs(1.0f / dir.y);
-        x = -sign(dir.y) * dir.x * scale;
-        z = -sign(dir.y) * dir.z * scale;
-        return new Vec2(x, z);
+        scale = Math.abs(1.0f / dirY);
+        out[0] = -sign(dirY) * dirX * scale;
+        out[1] = -sign(dirY) * dirZ * scale;
+        return;
       case 4: case 5:
-        scale = Math.abs(1.0f / dir.z);
-        x = -sign(dir.z) * dir.x * scale;
-        y = sign(dir.z) * dir.y * scale;
-        return new Vec2(x, y);
+        scale = Math.abs(1.0f / dirZ);
+        out[0] = -sign(dirZ) * dirX * scale;
+        out[1] = sign(dirZ) * dirY * scale;
+        return;
       default:
         throw new Error("Invalid face " + face);
     }
   }
 
-  public int yuvToARGB(int y1, int u, int v) {
+  /**
+   * Inverse of {@link #getXYOnFace(float, float, float, int, float[])}: writes an unnormalized
+   * direction that lands on face coordinates (x, y) of the given face.
+   */
+  public static void getFaceDirection(int face, float x, float y, float[] out) {
+    switch (face) {
+      case 0:
+        out[0] = 1; out[1] = y; out[2] = x;
+        return;
+      case 1:
+        out[0] = -1; out[1] = -y; out[2] = -x;
+        return;
+      case 2:
+        out[0] = -x; out[1] = 1; out[2] = -y;
+        return;
+      case 3:
+        out[0] = x; out[1] = -1; out[2] = y;
+        return;
+      case 4:
+        out[0] = -x; out[1] = y; out[2] = 1;
+        return;
+      case 5:
+        out[0] = x; out[1] = -y; out[2] = -1;
+        return;
+      default:
+        throw new Error("Invalid face " + face);
+    }
+  }
+
+  public static int yuvToARGB(int y1, int u, int v) {
     final int y1192 = 1192 * y1;
     int r = (y1192 + 1634 * v);
     int g = (y1192 - 833 * v - 400 * u);
@@ -169,4 +951,9 @@ public class AREnvironment {
 
     return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
   }
+
+  /** Swaps an 0xAARRGGBB color to the 0xAABBGGRR layout of the faces. */
+  public static int argbToRgba(int argb) {
+    return (argb & 0xff00ff00) | ((argb >> 16) & 0xff) | ((argb & 0xff) << 16);
+  }
 }
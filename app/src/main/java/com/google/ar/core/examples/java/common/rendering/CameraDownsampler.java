@@ -0,0 +1,107 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+/**
+ * Shrinks a YUV_420_888 camera frame into a small linear RGB thumbnail by averaging every
+ * factor * factor block of pixels.
+ *
+ * <p>The frame is read in one sweep, a row at a time through {@link YuvConverter#convertRow},
+ * and each row is added into per-column running sums, so the planes are only ever read
+ * sequentially. Averaging happens in linear space, where it matches how the light mixes on the
+ * sensor. The thumbnail and the scratch rows are reused between frames and only grow with the
+ * camera resolution.
+ */
+public class CameraDownsampler {
+  private final int factor;
+  private final YuvConverter converter = new YuvConverter();
+
+  private int width;
+  private int height;
+
+  // {r, g, b} per thumbnail pixel, row-major.
+  private float[] pixels = new float[0];
+
+  // One converted camera row and the sums of the thumbnail row being built.
+  private int[] row = new int[0];
+  private float[] sums = new float[0];
+
+  /** @param factor Camera pixels per side of a thumbnail pixel. */
+  public CameraDownsampler(int factor) {
+    assert(factor > 0);
+    this.factor = factor;
+  }
+
+  public int getFactor() {
+    return factor;
+  }
+
+  /** Returns the thumbnail width, the camera width divided by the factor, rounded up. */
+  public int getWidth() {
+    return width;
+  }
+
+  /** Returns the thumbnail height, the camera height divided by the factor, rounded up. */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Returns the thumbnail as linear {r, g, b} floats per pixel, row-major. Valid until the next
+   * call to {@link #downsample(CameraFrame)}.
+   */
+  public float[] getPixels() {
+    return pixels;
+  }
+
+  /** Replaces the thumbnail with the block averages of {@code frame}. */
+  public void downsample(CameraFrame frame) {
+    converter.setFrame(frame);
+    int frameWidth = frame.getWidth();
+    int frameHeight = frame.getHeight();
+    width = (frameWidth + factor - 1) / factor;
+    height = (frameHeight + factor - 1) / factor;
+    if (pixels.length < width * height * 3) {
+      pixels = new float[width * height * 3];
+    }
+    if (row.length < frameWidth) {
+      row = new int[frameWidth];
+    }
+    if (sums.length < width * 3) {
+      sums = new float[width * 3];
+    }
+
+    for (int y = 0; y < height; y++) {
+      int rowBegin = y * factor;
+      int rowEnd = Math.min(rowBegin + factor, frameHeight);
+      for (int i = 0; i < width * 3; i++) {
+        sums[i] = 0;
+      }
+
+      for (int cameraRow = rowBegin; cameraRow < rowEnd; cameraRow++) {
+        converter.convertRow(cameraRow, row, 0);
+        for (int x = 0, column = 0; x < width; x++) {
+          int columnEnd = Math.min(column + factor, frameWidth);
+          float r = 0, g = 0, b = 0;
+          for (; column < columnEnd; column++) {
+            int rgba = row[column];
+            r += RadianceAccumulator.decode(rgba);
+            g += RadianceAccumulator.decode(rgba >> 8);
+            b += RadianceAccumulator.decode(rgba >> 16);
+          }
+          sums[x * 3] += r;
+          sums[x * 3 + 1] += g;
+          sums[x * 3 + 2] += b;
+        }
+      }
+
+      int blockHeight = rowEnd - rowBegin;
+      int out = y * width * 3;
+      for (int x = 0; x < width; x++) {
+        int blockWidth = Math.min(factor, frameWidth - x * factor);
+        float scale = 1.0f / (blockWidth * blockHeight);
+        pixels[out + x * 3] = sums[x * 3] * scale;
+        pixels[out + x * 3 + 1] = sums[x * 3 + 1] * scale;
+        pixels[out + x * 3 + 2] = sums[x * 3 + 2] * scale;
+      }
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A copy of one YUV_420_888 camera image together with the camera matrices it was taken with.
+ * The plane buffers are direct and reused between frames, so a pooled frame only allocates when
+ * the camera resolution grows.
+ */
+public class CameraFrame {
+  public static final int NUM_PLANES = 3;
+
+  private int width;
+  private int height;
+  private long timestamp;
+
+  private final ByteBuffer[] planes = new ByteBuffer[NUM_PLANES];
+  // Duplicates of the planes for YuvConverter, which moves their positions. Made once per plane
+  // buffer, so switching between pooled frames does not allocate.
+  private final ByteBuffer[] planeReaders = new ByteBuffer[NUM_PLANES];
+  private final int[] rowStrides = new int[NUM_PLANES];
+  private final int[] pixelStrides = new int[NUM_PLANES];
+
+  private final float[] projectionMatrix = new float[16];
+  private final float[] viewMatrix = new float[16];
+
+  public CameraFrame() {
+    for (int i = 0; i < NUM_PLANES; i++) {
+      planes[i] = ByteBuffer.allocateDirect(0);
+      planeReaders[i] = planes[i].duplicate();
+    }
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /** Returns the plane buffer, positioned at zero with its limit at the end of the plane data. */
+  public ByteBuffer getPlane(int plane) {
+    return planes[plane];
+  }
+
+  /**
+   * Returns a view of the plane buffer whose position and limit the caller may move, shared by
+   * all callers. Its limit has to be set from {@link #getPlane(int)} before reading.
+   */
+  ByteBuffer getPlaneReader(int plane) {
+    return planeReaders[plane];
+  }
+
+  public int getRowStride(int plane) {
+    return rowStrides[plane];
+  }
+
+  public int getPixelStride(int plane) {
+    return pixelStrides[plane];
+  }
+
+  /** Returns the 4x4 projection matrix, in column-major order. */
+  public float[] getProjectionMatrix() {
+    return projectionMatrix;
+  }
+
+  /** Returns the 4x4 view matrix, in column-major order. */
+  public float[] getViewMatrix() {
+    return viewMatrix;
+  }
+
+  public void setImage(int width, int height, long timestamp) {
+    this.width = width;
+    this.height = height;
+    this.timestamp = timestamp;
+  }
+
+  /** Copies the remaining bytes of {@code source} into the given plane. */
+  public void setPlane(int plane, ByteBuffer source, int rowStride, int pixelStride) {
+    ByteBuffer target = planes[plane];
+    if (target.capacity() < source.remaining()) {
+      target = ByteBuffer.allocateDirect(source.remaining()).order(ByteOrder.nativeOrder());
+      planes[plane] = target;
+      planeReaders[plane] = target.duplicate();
+    }
+    target.clear();
+    target.put(source);
+    target.flip();
+    rowStrides[plane] = rowStride;
+    pixelStrides[plane] = pixelStride;
+  }
+
+  public void setMatrices(float[] projMat, float[] viewMat) {
+    System.arraycopy(projMat, 0, projectionMatrix, 0, 16);
+    System.arraycopy(viewMat, 0, viewMatrix, 0, 16);
+  }
+}
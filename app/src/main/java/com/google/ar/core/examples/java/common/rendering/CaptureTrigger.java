@@ -0,0 +1,167 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+/**
+ * Decides per frame whether the environment should be captured, from how far the camera turned
+ * since the last capture and how fast it is turning now.
+ *
+ * <p>A capture fires once the rotation since the last capture exposes enough new directions,
+ * measured as the rotation angle relative to the narrower field of view. Frames turning faster
+ * than MAX_ANGULAR_VELOCITY are skipped because their images are smeared by motion blur. A still
+ * camera is recaptured every REFRESH_INTERVAL_NANOS so that lighting changes are still seen.
+ */
+public class CaptureTrigger {
+  // Rotation since the last capture, as a fraction of the field of view, that fires a capture.
+  private static final float DEFAULT_NEW_FRACTION = 0.2f;
+
+  // Radians per second above which a frame is considered blurred. At a typical 500 px focal
+  // length and 16 ms exposure this is about 8 px of smear.
+  private static final float DEFAULT_MAX_ANGULAR_VELOCITY = 1.0f;
+
+  private static final long REFRESH_INTERVAL_NANOS = 1000000000L;
+
+  /** Why a frame was or was not captured. */
+  public enum Reason {
+    /** Nothing was captured yet. */
+    FIRST_CAPTURE(true),
+    /** The camera turned far enough to see new directions. */
+    NEW_DIRECTIONS(true),
+    /** The camera is still, but the last capture is getting old. */
+    REFRESH(true),
+    /** The camera did not turn far enough since the last capture. */
+    STILL(false),
+    /** The camera is turning fast enough to blur the image. */
+    MOTION_BLUR(false),
+    /** A capture fired but the capture stage was busy and dropped it. */
+    BUSY(false);
+
+    private final boolean capture;
+
+    Reason(boolean capture) {
+      this.capture = capture;
+    }
+
+    /** Returns true if the frame should be captured. */
+    public boolean isCapture() {
+      return capture;
+    }
+  }
+
+  /** Receives every decision, for metrics. Called on the thread calling the trigger. */
+  public interface Listener {
+    /**
+     * @param reason Why the frame was or was not captured.
+     * @param angularVelocity Rotation speed of the camera, in radians per second.
+     * @param newFraction Rotation since the last capture, relative to the field of view.
+     */
+    void onDecision(Reason reason, float angularVelocity, float newFraction);
+  }
+
+  private final float[] lastFrameView = new float[16];
+  private final float[] lastCaptureView = new float[16];
+  private final float[] pendingView = new float[16];
+  private long lastFrameTimestamp;
+  private long lastCaptureTimestamp;
+  private long pendingTimestamp;
+  private boolean hasFrame;
+  private boolean hasCapture;
+
+  private float angularVelocity;
+  private float newFraction;
+  private float newFractionThreshold = DEFAULT_NEW_FRACTION;
+  private float maxAngularVelocity = DEFAULT_MAX_ANGULAR_VELOCITY;
+  private final int[] counts = new int[Reason.values().length];
+  private Listener listener;
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Sets the rotation since the last capture, relative to the field of view, that fires. */
+  public void setNewFractionThreshold(float newFractionThreshold) {
+    this.newFractionThreshold = newFractionThreshold;
+  }
+
+  /** Sets the angular velocity in radians per second above which frames are skipped. */
+  public void setMaxAngularVelocity(float maxAngularVelocity) {
+    this.maxAngularVelocity = maxAngularVelocity;
+  }
+
+  /** Returns how many frames were decided for the given reason so far. */
+  public int getCount(Reason reason) {
+    return counts[reason.ordinal()];
+  }
+
+  /**
+   * Decides whether to capture the current frame. If the returned reason is a capture, report
+   * the outcome with {@link #onCaptureSubmitted(boolean)}.
+   *
+   * @param viewMat The camera view matrix, column-major.
+   * @param projMat The camera projection matrix, column-major.
+   * @param timestamp The camera image timestamp, in nanoseconds.
+   */
+  public Reason update(float[] viewMat, float[] projMat, long timestamp) {
+    if (hasFrame && timestamp > lastFrameTimestamp) {
+      float seconds = (timestamp - lastFrameTimestamp) * 1e-9f;
+      angularVelocity = rotationAngle(lastFrameView, viewMat) / seconds;
+    }
+    System.arraycopy(viewMat, 0, lastFrameView, 0, 16);
+    lastFrameTimestamp = timestamp;
+    hasFrame = true;
+
+    // Narrower of the horizontal and vertical field of view
+    float fov = 2 * (float) Math.atan(1 / Math.max(Math.abs(projMat[0]), Math.abs(projMat[5])));
+    newFraction = hasCapture ? rotationAngle(lastCaptureView, viewMat) / fov : 1;
+
+    Reason reason;
+    if (!hasCapture) {
+      reason = Reason.FIRST_CAPTURE;
+    } else if (angularVelocity > maxAngularVelocity) {
+      reason = Reason.MOTION_BLUR;
+    } else if (newFraction >= newFractionThreshold) {
+      reason = Reason.NEW_DIRECTIONS;
+    } else if (timestamp - lastCaptureTimestamp >= REFRESH_INTERVAL_NANOS) {
+      reason = Reason.REFRESH;
+    } else {
+      reason = Reason.STILL;
+    }
+    if (reason.isCapture()) {
+      System.arraycopy(viewMat, 0, pendingView, 0, 16);
+      pendingTimestamp = timestamp;
+    }
+    report(reason);
+    return reason;
+  }
+
+  /**
+   * Reports whether the frame accepted by the last {@link #update} was actually handed to the
+   * capture stage. Dropped frames do not count as captured, so the next frame fires again.
+   */
+  public void onCaptureSubmitted(boolean submitted) {
+    if (!submitted) {
+      report(Reason.BUSY);
+      return;
+    }
+    System.arraycopy(pendingView, 0, lastCaptureView, 0, 16);
+    lastCaptureTimestamp = pendingTimestamp;
+    hasCapture = true;
+  }
+
+  private void report(Reason reason) {
+    counts[reason.ordinal()]++;
+    if (listener != null) {
+      listener.onDecision(reason, angularVelocity, newFraction);
+    }
+  }
+
+  /**
+   * Returns the angle in radians of the rotation between two view matrices, from the trace of
+   * R_a * R_b^T, which is the elementwise dot product of the two rotations.
+   */
+  private static float rotationAngle(float[] a, float[] b) {
+    float trace = a[0] * b[0] + a[1] * b[1] + a[2] * b[2]
+        + a[4] * b[4] + a[5] * b[5] + a[6] * b[6]
+        + a[8] * b[8] + a[9] * b[9] + a[10] * b[10];
+    float cos = Math.max(-1, Math.min(1, (trace - 1) / 2));
+    return (float) Math.acos(cos);
+  }
+}
@@ -0,0 +1,76 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.util.Arrays;
+
+/**
+ * Tracks which TILE_SIZE x TILE_SIZE tiles of each cube face changed, as one bitset per face.
+ */
+public class DirtyTiles {
+  public static final int TILE_SIZE = 8;
+
+  private final int tilesPerSide;
+  private final long[][] bits;
+
+  public DirtyTiles(int faceCount, int faceSize) {
+    tilesPerSide = (faceSize + TILE_SIZE - 1) / TILE_SIZE;
+    bits = new long[faceCount][(tilesPerSide * tilesPerSide + 63) / 64];
+  }
+
+  public int getTilesPerSide() {
+    return tilesPerSide;
+  }
+
+  /** Marks the tile containing texel (x, y) of a face. */
+  public void markTexel(int face, int x, int y) {
+    int tile = (y / TILE_SIZE) * tilesPerSide + x / TILE_SIZE;
+    bits[face][tile >> 6] |= 1L << tile;
+  }
+
+  public boolean isDirty(int face, int tileX, int tileY) {
+    int tile = tileY * tilesPerSide + tileX;
+    return (bits[face][tile >> 6] & (1L << tile)) != 0;
+  }
+
+  public boolean isFaceDirty(int face) {
+    for (long word : bits[face]) {
+      if (word != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void markAll() {
+    int tiles = tilesPerSide * tilesPerSide;
+    for (long[] face : bits) {
+      Arrays.fill(face, -1L);
+      // Keep the bits past the last tile clear so isFaceDirty stays exact
+      if ((tiles & 63) != 0) {
+        face[face.length - 1] = (1L << (tiles & 63)) - 1;
+      }
+    }
+  }
+
+  public void clear() {
+    for (long[] face : bits) {
+      Arrays.fill(face, 0);
+    }
+  }
+
+  /** Adds the dirty tiles of {@code other}, which must have the same dimensions. */
+  public void or(DirtyTiles other) {
+    for (int face = 0; face < bits.length; face++) {
+      for (int i = 0; i < bits[face].length; i++) {
+        bits[face][i] |= other.bits[face][i];
+      }
+    }
+  }
+
+  /** Moves the dirty tiles into {@code target}, replacing its contents, and clears this set. */
+  public void moveTo(DirtyTiles target) {
+    for (int face = 0; face < bits.length; face++) {
+      System.arraycopy(bits[face], 0, target.bits[face], 0, bits[face].length);
+      Arrays.fill(bits[face], 0);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+/**
+ * Estimates the direction and color of the dominant light in the environment, as the centroid of
+ * the observed radiance weighted by squared luminance. Squaring lets a bright source outweigh a
+ * much larger but dimmer background.
+ *
+ * <p>The weighted sums are kept up to date one texel at a time, like {@link SphericalHarmonics},
+ * so {@link #estimate()} is O(1). Its result is smoothed over time so that the light does not
+ * jump around while the faces fill in.
+ */
+public class DominantLight {
+  // Fraction of the new estimate blended in per call to estimate().
+  private static final float DEFAULT_SMOOTHING = 0.2f;
+
+  // Below this length of the normalized centroid the environment has no dominant direction and
+  // the previous estimate is kept.
+  private static final double MIN_DIRECTIONALITY = 1e-3;
+
+  // Doubles, because the sums see a long stream of additions and removals that should cancel.
+  private double sumX, sumY, sumZ;
+  private double sumR, sumG, sumB;
+  private double sumWeight;
+
+  // Start overhead and white until something is observed.
+  private final float[] direction = new float[] {0, 1, 0};
+  private final float[] color = new float[] {1, 1, 1};
+  private float smoothing = DEFAULT_SMOOTHING;
+
+  /**
+   * Replaces the contribution of one texel.
+   *
+   * @param x Unit direction of the texel, with y and z.
+   * @param oldR Linear radiance the texel contributed so far, with oldG and oldB.
+   * @param r Linear radiance the texel contributes from now on, with g and b.
+   * @param solidAngle Solid angle covered by the texel.
+   */
+  public void replace(
+      float x, float y, float z,
+      float oldR, float oldG, float oldB,
+      float r, float g, float b,
+      float solidAngle) {
+    double oldLuminance = luminance(oldR, oldG, oldB);
+    double newLuminance = luminance(r, g, b);
+    double oldWeight = oldLuminance * oldLuminance * solidAngle;
+    double newWeight = newLuminance * newLuminance * solidAngle;
+    double delta = newWeight - oldWeight;
+    sumX += x * delta;
+    sumY += y * delta;
+    sumZ += z * delta;
+    sumR += r * newWeight - oldR * oldWeight;
+    sumG += g * newWeight - oldG * oldWeight;
+    sumB += b * newWeight - oldB * oldWeight;
+    sumWeight += delta;
+  }
+
+  /** Sets the fraction of each new estimate blended into the smoothed one, in (0, 1]. */
+  public void setSmoothing(float smoothing) {
+    assert(smoothing > 0 && smoothing <= 1);
+    this.smoothing = smoothing;
+  }
+
+  /** Blends the current centroid into the smoothed direction and color. */
+  public void estimate() {
+    if (sumWeight <= 0) {
+      return;
+    }
+    double length = Math.sqrt(sumX * sumX + sumY * sumY + sumZ * sumZ);
+    if (length / sumWeight > MIN_DIRECTIONALITY) {
+      float x = direction[0] + (float) (sumX / length - direction[0]) * smoothing;
+      float y = direction[1] + (float) (sumY / length - direction[1]) * smoothing;
+      float z = direction[2] + (float) (sumZ / length - direction[2]) * smoothing;
+      float invLength = 1.0f / (float) Math.sqrt(x * x + y * y + z * z);
+      direction[0] = x * invLength;
+      direction[1] = y * invLength;
+      direction[2] = z * invLength;
+    }
+    color[0] += (float) (sumR / sumWeight - color[0]) * smoothing;
+    color[1] += (float) (sumG / sumWeight - color[1]) * smoothing;
+    color[2] += (float) (sumB / sumWeight - color[2]) * smoothing;
+  }
+
+  /** Writes the smoothed unit world-space direction towards the light into {@code out}. */
+  public void getDirection(float[] out) {
+    out[0] = direction[0];
+    out[1] = direction[1];
+    out[2] = direction[2];
+  }
+
+  /** Writes the smoothed linear color of the light into {@code out}. */
+  public void getColor(float[] out) {
+    out[0] = color[0];
+    out[1] = color[1];
+    out[2] = color[2];
+  }
+
+  public void clear() {
+    sumX = sumY = sumZ = 0;
+    sumR = sumG = sumB = 0;
+    sumWeight = 0;
+  }
+
+  private static double luminance(float r, float g, float b) {
+    return 0.2126 * r + 0.7152 * g + 0.0722 * b;
+  }
+}
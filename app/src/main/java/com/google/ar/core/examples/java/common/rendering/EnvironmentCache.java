@@ -0,0 +1,206 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Saves the accumulated environment to a file and restores it on the next start, so the faces
+ * do not start out black.
+ *
+ * <p>The file is a fixed header followed by one int per texel, face by face. The int holds the
+ * sRGB color packed like the faces, with the accumulated weight quantized into the alpha byte,
+ * so six 64 * 64 cube faces take about 96 KB. Saving is split in two: {@link #snapshot} encodes
+ * the texels into a reused buffer and has to be serialized with the environment's update, {@link
+ * #write} then writes the buffer through a FileChannel into a temporary file that replaces the
+ * old one. The file is memory-mapped when loading.
+ *
+ * <p>A cache is only trusted for MAX_AGE_MILLIS. Its weights are scaled down with its age and
+ * capped at MAX_RESTORED_WEIGHT, a single sample, so the first live frames replace it and the
+ * sampling plan still treats the restored texels as uncertain. This matters because the AR
+ * session picks a new heading for the world axes on every start: up and down survive a restart,
+ * the rotation around them does not.
+ */
+public class EnvironmentCache {
+  private static final int MAGIC = 0x43455241; // "AREC" in little-endian
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 28;
+
+  private static final long MAX_AGE_MILLIS = 6 * 60 * 60 * 1000L;
+  private static final float MAX_RESTORED_WEIGHT = 1;
+
+  /** Outcome of {@link #load(AREnvironment, File)}. */
+  public enum Result {
+    /** The environment was restored from the file. */
+    LOADED,
+    /** There is no cache file. */
+    MISSING,
+    /** The file is truncated or was written by another version, layout or environment size. */
+    INVALID,
+    /** The file is older than MAX_AGE_MILLIS, or from the future. */
+    STALE
+  }
+
+  // Reused between saves, header and texels of the last snapshot.
+  private ByteBuffer buffer;
+  private boolean hasSnapshot;
+  private final float[] radiance = new float[3];
+
+  /**
+   * Writes the accumulated texels of {@code env} to {@code file}. Must not run concurrently with
+   * the environment's update.
+   */
+  public void save(AREnvironment env, File file) throws IOException {
+    snapshot(env);
+    write(file);
+  }
+
+  /**
+   * Encodes the accumulated texels of {@code env} for the next {@link #write}. Must not run
+   * concurrently with the environment's update or a write.
+   */
+  public void snapshot(AREnvironment env) {
+    RadianceAccumulator accumulator = env.getAccumulator();
+    int faceCount = env.getFaceCount();
+    int size = env.getSize();
+    int texels = size * size;
+    int bytes = HEADER_BYTES + faceCount * texels * 4;
+    if (buffer == null || buffer.capacity() != bytes) {
+      buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    float maxWeight = 0;
+    for (int face = 0; face < faceCount; face++) {
+      for (int texel = 0; texel < texels; texel++) {
+        maxWeight = Math.max(maxWeight, accumulator.getWeight(face, texel));
+      }
+    }
+    float weightScale = maxWeight > 0 ? 255 / maxWeight : 0;
+
+    buffer.clear();
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.putInt(faceCount);
+    buffer.putInt(size);
+    buffer.putLong(System.currentTimeMillis());
+    buffer.putFloat(weightScale);
+    for (int face = 0; face < faceCount; face++) {
+      for (int texel = 0; texel < texels; texel++) {
+        float weight = accumulator.getWeight(face, texel);
+        int alpha = 0;
+        if (weight > 0) {
+          // Observed texels must stay observed
+          alpha = Math.max(1, Math.min(255, Math.round(weight * weightScale)));
+        }
+        accumulator.getRadiance(face, texel, radiance);
+        int rgb = RadianceAccumulator.encode(radiance[0], radiance[1], radiance[2]) & 0xffffff;
+        buffer.putInt(alpha << 24 | rgb);
+      }
+    }
+    buffer.flip();
+    hasSnapshot = true;
+  }
+
+  /**
+   * Writes the last snapshot to {@code file}, replacing it only once the whole snapshot is on
+   * disk. Must not run concurrently with a snapshot.
+   */
+  public void write(File file) throws IOException {
+    if (!hasSnapshot) {
+      throw new IllegalStateException("No snapshot to write");
+    }
+    buffer.rewind();
+    File temporary = new File(file.getPath() + ".tmp");
+    FileOutputStream stream = new FileOutputStream(temporary);
+    boolean written = false;
+    try {
+      FileChannel channel = stream.getChannel();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      written = true;
+    } finally {
+      stream.close();
+      if (!written) {
+        temporary.delete();
+      }
+    }
+    if (!temporary.renameTo(file)) {
+      temporary.delete();
+      throw new IOException("Failed to replace " + file);
+    }
+  }
+
+  /**
+   * Restores {@code env} from {@code file} if it is valid and fresh enough, see the staleness
+   * policy above. Must not run concurrently with the environment's update.
+   */
+  public Result load(AREnvironment env, File file) throws IOException {
+    if (!file.exists()) {
+      return Result.MISSING;
+    }
+    int faceCount = env.getFaceCount();
+    int size = env.getSize();
+    int texels = size * size;
+    long bytes = HEADER_BYTES + (long) faceCount * texels * 4;
+
+    MappedByteBuffer mapped;
+    FileInputStream stream = new FileInputStream(file);
+    try {
+      FileChannel channel = stream.getChannel();
+      if (channel.size() != bytes) {
+        return Result.INVALID;
+      }
+      // The mapping stays valid after the channel is closed
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, bytes);
+    } finally {
+      stream.close();
+    }
+    mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+    if (mapped.getInt() != MAGIC
+        || mapped.getInt() != VERSION
+        || mapped.getInt() != faceCount
+        || mapped.getInt() != size) {
+      return Result.INVALID;
+    }
+    long age = System.currentTimeMillis() - mapped.getLong();
+    if (age < 0 || age > MAX_AGE_MILLIS) {
+      return Result.STALE;
+    }
+    float weightScale = mapped.getFloat();
+    float freshness = 1 - (float) age / MAX_AGE_MILLIS;
+    float restoredScale = weightScale > 0 ? freshness / weightScale : 0;
+
+    RadianceAccumulator accumulator = env.getAccumulator();
+    IntBuffer texelData = mapped.asIntBuffer();
+    for (int face = 0; face < faceCount; face++) {
+      for (int texel = 0; texel < texels; texel++) {
+        int packed = texelData.get();
+        int alpha = packed >>> 24;
+        if (alpha == 0) {
+          accumulator.set(face, texel, 0, 0, 0, 0);
+          continue;
+        }
+        // Keep a trace of weight however old the cache, zero would mean never observed
+        float weight = Math.max(Float.MIN_NORMAL,
+            Math.min(MAX_RESTORED_WEIGHT, alpha * restoredScale));
+        accumulator.set(
+            face,
+            texel,
+            RadianceAccumulator.decode(packed),
+            RadianceAccumulator.decode(packed >> 8),
+            RadianceAccumulator.decode(packed >> 16),
+            weight);
+      }
+    }
+    env.resolveAccumulated();
+    return Result.LOADED;
+  }
+}
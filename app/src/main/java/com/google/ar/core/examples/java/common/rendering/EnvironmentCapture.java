@@ -0,0 +1,319 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.media.Image;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs {@link AREnvironment#update(CameraFrame)} on a background worker so the OpenGL thread only
+ * has to upload finished faces.
+ *
+ * <p>The camera image is copied into a pooled {@link CameraFrame} and released immediately. The
+ * worker projects it and publishes a snapshot of the faces through a lock-free double buffer,
+ * which the OpenGL thread picks up with {@link #uploadOnGlThread()}.
+ */
+public class EnvironmentCapture {
+  private static final String TAG = EnvironmentCapture.class.getSimpleName();
+
+  private static final int FRAME_POOL_SIZE = 2;
+  private static final long RELEASE_TIMEOUT_SECONDS = 10;
+  private static final int FACE_BUFFER_COUNT = 2;
+
+  // Time the worker spends filling unobserved texels after each update.
+  private static final long FILL_BUDGET_NANOS = 2000000;
+
+  // Time the worker spends on the prefiltered levels after each update.
+  private static final long PREFILTER_BUDGET_NANOS = 3000000;
+
+  private final AREnvironment env;
+  private final EnvironmentTextures textures;
+  private final ExecutorService worker;
+  private final EnvironmentCache cache = new EnvironmentCache();
+
+  // Frames projected since the cache was last saved or loaded, and the frames and start time of
+  // the pending save's snapshot. Only touched on the worker.
+  private int updatesSinceCache;
+  private int snapshotUpdates;
+  private long saveStart;
+
+  // Camera frames not currently queued or being projected.
+  private final ConcurrentLinkedQueue<CameraFrame> freeFrames = new ConcurrentLinkedQueue<>();
+
+  // Double buffer of face snapshots. The worker fills a free buffer and swaps it into
+  // readyFaces; the OpenGL thread takes it out, uploads it and returns it to freeFaces.
+  private final ConcurrentLinkedQueue<FaceBuffers> freeFaces = new ConcurrentLinkedQueue<>();
+  private final AtomicReference<FaceBuffers> readyFaces = new AtomicReference<>();
+
+  // Lighting of the last uploaded snapshot, only touched on the OpenGL thread.
+  private final float[] irradianceCoefficients =
+      new float[SphericalHarmonics.NUM_COEFFICIENTS * 3];
+  private final float[] lightDirection = new float[] {0, 1, 0};
+  private final float[] lightColor = new float[] {1, 1, 1};
+
+  public EnvironmentCapture(AREnvironment env, EnvironmentTextures textures) {
+    this.env = env;
+    this.textures = textures;
+    for (int i = 0; i < FRAME_POOL_SIZE; i++) {
+      freeFrames.offer(new CameraFrame());
+    }
+    for (int i = 0; i < FACE_BUFFER_COUNT; i++) {
+      freeFaces.offer(env.createFaceBuffers());
+    }
+    worker =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "EnvironmentCapture");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+              }
+            });
+  }
+
+  /**
+   * Copies the camera image, closes it and queues it for projection.
+   *
+   * @return false if the worker is still busy with earlier frames and the image was dropped.
+   */
+  public boolean submit(Image image, float[] projMat, float[] viewMat) {
+    final CameraFrame frame = freeFrames.poll();
+    if (frame == null) {
+      image.close();
+      return false;
+    }
+
+    final long traceStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+    try {
+      frame.setImage(image.getWidth(), image.getHeight(), image.getTimestamp());
+      Image.Plane[] planes = image.getPlanes();
+      for (int i = 0; i < CameraFrame.NUM_PLANES; i++) {
+        frame.setPlane(
+            i, planes[i].getBuffer(), planes[i].getRowStride(), planes[i].getPixelStride());
+      }
+      frame.setMatrices(projMat, viewMat);
+    } finally {
+      image.close();
+    }
+    if (StageTimings.ENABLED) {
+      StageTimings.record(TraceRecorder.Stage.SUBMIT, traceStart);
+    }
+
+    worker.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            process(frame);
+          }
+        });
+    return true;
+  }
+
+  /**
+   * Uploads the changed tiles of the most recently finished faces, if any. Must be called on the
+   * OpenGL thread.
+   *
+   * @return the number of bytes uploaded this frame, 0 if there was nothing new.
+   */
+  public int uploadOnGlThread() {
+    FaceBuffers faces = readyFaces.getAndSet(null);
+    if (faces == null) {
+      return 0;
+    }
+    final long traceStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+    int bytes = textures.load(faces);
+    float[] coefficients = faces.getIrradianceCoefficients();
+    System.arraycopy(coefficients, 0, irradianceCoefficients, 0, coefficients.length);
+    System.arraycopy(faces.getLightDirection(), 0, lightDirection, 0, 3);
+    System.arraycopy(faces.getLightColor(), 0, lightColor, 0, 3);
+    freeFaces.offer(faces);
+    if (StageTimings.ENABLED) {
+      StageTimings.record(TraceRecorder.Stage.UPLOAD, traceStart, bytes);
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the irradiance coefficients matching the uploaded faces, see {@link
+   * SphericalHarmonics#getIrradianceCoefficients(float[])}. Must be called on the OpenGL thread.
+   */
+  public float[] getIrradianceCoefficients() {
+    return irradianceCoefficients;
+  }
+
+  /**
+   * Returns the world-space direction towards the dominant light matching the uploaded faces.
+   * Must be called on the OpenGL thread.
+   */
+  public float[] getLightDirection() {
+    return lightDirection;
+  }
+
+  /**
+   * Returns the linear color of the dominant light matching the uploaded faces. Must be called on
+   * the OpenGL thread.
+   */
+  public float[] getLightColor() {
+    return lightColor;
+  }
+
+  /**
+   * Saves the environment to {@code file}. Waits for the worker to take a snapshot after the
+   * frames already queued, then leaves the file write to the worker, so the caller does not block
+   * on storage. A failed write is logged, and the next save retries it. Nothing is written if no
+   * frame was projected since the last save or load, so a restored cache does not get a new
+   * timestamp without new observations. See {@link EnvironmentCache}.
+   */
+  public void saveCache(final File file) throws IOException {
+    boolean saved =
+        runOnWorker(
+            new Callable<Boolean>() {
+              @Override
+              public Boolean call() {
+                if (updatesSinceCache == 0) {
+                  return false;
+                }
+                saveStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+                cache.snapshot(env);
+                snapshotUpdates = updatesSinceCache;
+                return true;
+              }
+            });
+    if (!saved) {
+      return;
+    }
+    // Queued behind the snapshot on the same worker, so it cannot overlap the next one
+    worker.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              cache.write(file);
+              // Frames projected since the snapshot still need the next save
+              updatesSinceCache -= snapshotUpdates;
+            } catch (IOException e) {
+              Log.e(TAG, "Failed to save the environment cache", e);
+            }
+            if (StageTimings.ENABLED) {
+              StageTimings.record(TraceRecorder.Stage.CACHE_SAVE, saveStart);
+            }
+          }
+        });
+  }
+
+  /**
+   * Restores the environment from {@code file} on the worker and waits for it. A restored
+   * environment is published like a captured one, so the next {@link #uploadOnGlThread()} shows
+   * it. See {@link EnvironmentCache}.
+   */
+  public EnvironmentCache.Result loadCache(final File file) throws IOException {
+    return runOnWorker(
+        new Callable<EnvironmentCache.Result>() {
+          @Override
+          public EnvironmentCache.Result call() throws IOException {
+            final long traceStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+            EnvironmentCache.Result result = cache.load(env, file);
+            if (StageTimings.ENABLED) {
+              StageTimings.record(TraceRecorder.Stage.CACHE_LOAD, traceStart);
+            }
+            if (result == EnvironmentCache.Result.LOADED) {
+              updatesSinceCache = 0;
+              publish();
+            }
+            return result;
+          }
+        });
+  }
+
+  private <T> T runOnWorker(Callable<T> task) throws IOException {
+    try {
+      return worker.submit(task).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the capture worker", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new RuntimeException("Environment cache task failed", e.getCause());
+    }
+  }
+
+  /**
+   * Stops the worker once its queued work is done, so a cache write queued by {@link
+   * #saveCache} still completes. Waits at most RELEASE_TIMEOUT_SECONDS, then interrupts it.
+   */
+  public void release() {
+    worker.shutdown();
+    try {
+      if (!worker.awaitTermination(RELEASE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        Log.w(TAG, "Capture worker still busy when released");
+        worker.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      worker.shutdownNow();
+    }
+  }
+
+  private void process(CameraFrame frame) {
+    final long traceStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+    try {
+      env.update(frame);
+      updatesSinceCache++;
+
+      long stageStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+      env.fillHoles(FILL_BUDGET_NANOS);
+      if (StageTimings.ENABLED) {
+        StageTimings.record(TraceRecorder.Stage.FILL, stageStart);
+        stageStart = System.nanoTime();
+      }
+      env.prefilter(PREFILTER_BUDGET_NANOS);
+      if (StageTimings.ENABLED) {
+        StageTimings.record(TraceRecorder.Stage.PREFILTER, stageStart);
+      }
+
+      publish();
+    } catch (Throwable t) {
+      Log.e(TAG, "Exception while capturing the environment", t);
+    } finally {
+      freeFrames.offer(frame);
+      if (StageTimings.ENABLED) {
+        StageTimings.record(TraceRecorder.Stage.CAPTURE, traceStart);
+      }
+    }
+  }
+
+  /** Copies the faces into a free snapshot and hands it to the OpenGL thread. Worker only. */
+  private void publish() {
+    // If both buffers are taken the OpenGL thread is behind, the next frame publishes instead.
+    FaceBuffers faces = freeFaces.poll();
+    if (faces == null) {
+      return;
+    }
+    final long traceStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+    env.copyFaces(faces);
+    if (StageTimings.ENABLED) {
+      StageTimings.record(TraceRecorder.Stage.COPY, traceStart);
+    }
+    // A snapshot replaced before the OpenGL thread took it was never uploaded, so its dirty
+    // tiles and levels carry over. Only this thread publishes, so taking it out first cannot
+    // race.
+    FaceBuffers stale = readyFaces.getAndSet(null);
+    if (stale != null) {
+      faces.addDirty(stale);
+      freeFaces.offer(stale);
+    }
+    readyFaces.set(faces);
+  }
+}
@@ -0,0 +1,234 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+/**
+ * How an {@link AREnvironment} maps directions to texels: the faces, their size, and the mapping
+ * both ways. Everything that walks the texels, the projection, the spherical harmonics, the fill
+ * and the prefilter, goes through it, so they run unchanged over either layout.
+ *
+ * <p>Face coordinates are in [-1, 1] with x to the right and y up, and a face of side n has its
+ * texel (x, y) at face coordinates ((2 x + 1) / n - 1, 1 - (2 y + 1) / n), row-major from the
+ * top-left. Texel indices run across all faces, face by face.
+ */
+public enum EnvironmentLayout {
+  /**
+   * Six cube faces, in the order of {@link AREnvironment#getFaceDirection}. Picking the face of
+   * a direction takes a few branches per lookup, and the faces are uploaded as a cube map.
+   */
+  CUBE(AREnvironment.NUM_FACES, 1) {
+    // The faces are in the GL_TEXTURE_CUBE_MAP_POSITIVE_X to NEGATIVE_Z order already, but the
+    // cube map addresses some of them mirrored. These faces are stored with reversed columns,
+    // and the second set also with reversed rows.
+    private final boolean[] textureFlipsX = {true, true, true, false, true, true};
+    private final boolean[] textureFlipsY = {false, true, false, false, false, true};
+
+    @Override
+    public int getTexel(float dirX, float dirY, float dirZ, int side) {
+      int face = AREnvironment.getDirectionFace(dirX, dirY, dirZ);
+      // Inlined AREnvironment.getXYOnFace, without the output array
+      float x, y, scale;
+      switch (face) {
+        case 0: case 1:
+          scale = Math.abs(1.0f / dirX);
+          x = AREnvironment.sign(dirX) * dirZ * scale;
+          y = AREnvironment.sign(dirX) * dirY * scale;
+          break;
+        case 2: case 3:
+          scale = Math.abs(1.0f / dirY);
+          x = -AREnvironment.sign(dirY) * dirX * scale;
+          y = -AREnvironment.sign(dirY) * dirZ * scale;
+          break;
+        default:
+          scale = Math.abs(1.0f / dirZ);
+          x = -AREnvironment.sign(dirZ) * dirX * scale;
+          y = AREnvironment.sign(dirZ) * dirY * scale;
+          break;
+      }
+      return (face * side + toTexel(-y, side)) * side + toTexel(x, side);
+    }
+
+    @Override
+    public void getDirection(int face, float x, float y, float[] out) {
+      AREnvironment.getFaceDirection(face, x, y, out);
+    }
+
+    @Override
+    public float getTexelSolidAngle(int x, int y, int side) {
+      return SphericalHarmonics.texelSolidAngle(x, y, side);
+    }
+
+    @Override
+    public double getRegionRadius(int cellsPerSide) {
+      // Half the diagonal of a cell, seen from the face center where cells look largest
+      return Math.atan(Math.sqrt(2) / cellsPerSide);
+    }
+
+    @Override
+    public float getMaxStretch() {
+      return 1;
+    }
+
+    @Override
+    public boolean isTextureFlippedX(int face) {
+      return textureFlipsX[face];
+    }
+
+    @Override
+    public boolean isTextureFlippedY(int face) {
+      return textureFlipsY[face];
+    }
+  },
+
+  /**
+   * One square face holding the sphere projected onto an octahedron: the upper hemisphere is the
+   * inner diamond centered on +y, the lower hemisphere is folded over its edges into the corners.
+   * Both directions of the mapping are branch-free, and the face is uploaded as a single 2D
+   * texture. The face is twice the side of a cube face, for about the same texel size.
+   */
+  OCTAHEDRAL(1, 2) {
+    // Upper bound of the angle covered per unit of face coordinate: a step of one moves the
+    // point on the octahedron by sqrt(2), which is at least 1 / sqrt(3) away from the center.
+    private final float maxStretch = (float) Math.sqrt(6);
+
+    @Override
+    public int getTexel(float dirX, float dirY, float dirZ, int side) {
+      float invLength = 1 / (Math.abs(dirX) + Math.abs(dirY) + Math.abs(dirZ));
+      float x = -dirX * invLength;
+      float y = -dirZ * invLength;
+      // 1 below the horizon, selects the folded coordinates without branching
+      float below = Float.floatToRawIntBits(dirY) >>> 31;
+      float foldedX = Math.copySign(1 - Math.abs(y), x);
+      float foldedY = Math.copySign(1 - Math.abs(x), y);
+      x += (foldedX - x) * below;
+      y += (foldedY - y) * below;
+      return toTexel(-y, side) * side + toTexel(x, side);
+    }
+
+    @Override
+    public void getDirection(int face, float x, float y, float[] out) {
+      float up = 1 - Math.abs(x) - Math.abs(y);
+      // How far below the horizon the point is folded, 0 above it
+      float fold = Math.max(-up, 0);
+      out[0] = -(x - Math.copySign(fold, x));
+      out[1] = up;
+      out[2] = -(y - Math.copySign(fold, y));
+    }
+
+    @Override
+    public float getTexelSolidAngle(int x, int y, int side) {
+      float x0 = 2.0f * x / side - 1, x1 = 2.0f * (x + 1) / side - 1;
+      float y0 = 1 - 2.0f * y / side, y1 = 1 - 2.0f * (y + 1) / side;
+      // The octahedron's edges run diagonally through texel corners, so split the texel along
+      // the diagonal parallel to them. Each half then lies on one octahedron face, where the
+      // mapping is linear, and projects to a spherical triangle.
+      boolean sameSign = (x0 + x1 > 0) == (y0 + y1 > 0);
+      float[] a = new float[3], b = new float[3], c = new float[3], d = new float[3];
+      getDirection(0, x0, y0, a);
+      getDirection(0, x1, y0, b);
+      getDirection(0, x1, y1, c);
+      getDirection(0, x0, y1, d);
+      if (sameSign) {
+        return triangleSolidAngle(a, b, c) + triangleSolidAngle(a, c, d);
+      }
+      return triangleSolidAngle(a, b, d) + triangleSolidAngle(b, c, d);
+    }
+
+    @Override
+    public double getRegionRadius(int cellsPerSide) {
+      return Math.min(Math.PI, Math.sqrt(2) * maxStretch / cellsPerSide);
+    }
+
+    @Override
+    public float getMaxStretch() {
+      return maxStretch;
+    }
+
+    @Override
+    public boolean isTextureFlippedX(int face) {
+      return false;
+    }
+
+    @Override
+    public boolean isTextureFlippedY(int face) {
+      return false;
+    }
+  };
+
+  private final int faceCount;
+  private final int sizeScale;
+
+  EnvironmentLayout(int faceCount, int sizeScale) {
+    this.faceCount = faceCount;
+    this.sizeScale = sizeScale;
+  }
+
+  public int getFaceCount() {
+    return faceCount;
+  }
+
+  /** Returns the face side that matches the texel size of cube faces of side {@code cubeSize}. */
+  public int getFaceSize(int cubeSize) {
+    return cubeSize * sizeScale;
+  }
+
+  /**
+   * Returns the index, across all faces, of the texel of faces of side {@code side} that the
+   * direction lands on. The direction need not be normalized.
+   */
+  public abstract int getTexel(float dirX, float dirY, float dirZ, int side);
+
+  /** Writes an unnormalized direction that lands on face coordinates (x, y) of a face. */
+  public abstract void getDirection(int face, float x, float y, float[] out);
+
+  /** Writes the unnormalized direction through the center of the texel (x, y) of a face. */
+  public void getTexelDirection(int face, int x, int y, int side, float[] out) {
+    float half = side / 2.0f;
+    getDirection(face, (x + 0.5f - half) / half, -(y + 0.5f - half) / half, out);
+  }
+
+  /** Returns the solid angle of the texel (x, y), which is the same on every face. */
+  public abstract float getTexelSolidAngle(int x, int y, int side);
+
+  /**
+   * Returns an upper bound of the angle between the center of a cell of an n * n grid on a face
+   * and any point of the cell.
+   */
+  public abstract double getRegionRadius(int cellsPerSide);
+
+  /** Returns an upper bound of the angle covered per unit of face coordinate. */
+  public abstract float getMaxStretch();
+
+  /**
+   * Returns whether the texture of a face stores its columns right to left, so that OpenGL
+   * samples it in the direction {@link #getDirection} gives.
+   */
+  public abstract boolean isTextureFlippedX(int face);
+
+  /** Like {@link #isTextureFlippedX(int)}, for the rows being stored bottom to top. */
+  public abstract boolean isTextureFlippedY(int face);
+
+  /** Maps a face coordinate in [-1, 1] to a texel index in [0, side). */
+  static int toTexel(float coord, int side) {
+    float half = side * 0.5f;
+    int texel = (int) (coord * half + half);
+    return texel < 0 ? 0 : (texel >= side ? side - 1 : texel);
+  }
+
+  /** Returns the solid angle of the spherical triangle with corners in directions a, b and c. */
+  private static float triangleSolidAngle(float[] a, float[] b, float[] c) {
+    // Van Oosterom and Strackee, with the corners left unnormalized
+    double la = length(a), lb = length(b), lc = length(c);
+    double triple = a[0] * (b[1] * c[2] - b[2] * c[1])
+        + a[1] * (b[2] * c[0] - b[0] * c[2])
+        + a[2] * (b[0] * c[1] - b[1] * c[0]);
+    double denominator = la * lb * lc + dot(a, b) * lc + dot(b, c) * la + dot(c, a) * lb;
+    return (float) (2 * Math.atan2(Math.abs(triple), denominator));
+  }
+
+  private static double length(float[] v) {
+    return Math.sqrt(dot(v, v));
+  }
+
+  private static double dot(float[] u, float[] v) {
+    return (double) u[0] * v[0] + (double) u[1] * v[1] + (double) u[2] * v[2];
+  }
+}
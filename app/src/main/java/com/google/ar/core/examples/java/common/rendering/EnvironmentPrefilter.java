@@ -0,0 +1,446 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.util.Arrays;
+
+/**
+ * Builds a roughness-indexed mip chain of the environment faces on the CPU.
+ *
+ * <p>Level 0 is the faces themselves, a perfect mirror. Level l has faces of size >> l texels and
+ * holds the environment convolved with a GGX lobe of roughness l / (levels - 1), so a glossy
+ * material can pick its level from its roughness. The convolution importance samples the lobe
+ * and reads each sample from a box-filtered pyramid of the faces, at the level matching the
+ * sample's solid angle, so few samples are needed without aliasing.
+ *
+ * <p>Work is incremental: {@link #sync(DirtyTiles)} finds the face tiles that actually changed,
+ * updates the box pyramid above them and marks the output blocks whose lobe can reach them.
+ * {@link #filter(long)} then recomputes only those blocks, and can be spread across several calls
+ * with a time budget.
+ */
+public class EnvironmentPrefilter {
+  // GGX samples per output texel. Reading from the box pyramid keeps this low.
+  private static final int SAMPLE_COUNT = 32;
+
+  // Output texels are recomputed in square blocks of this size.
+  private static final int BLOCK_SIZE = 4;
+
+  // Encoded color of a texel before anything was captured, matching the filled faces.
+  private static final int BLACK = RadianceAccumulator.encode(0, 0, 0);
+
+  private final EnvironmentLayout layout;
+  private final int faceCount;
+  private final int size;
+  private final int levels;
+  private final int[][] faces;
+
+  // Copy of the faces as of the last sync, to tell changed tiles from merely marked ones.
+  private final int[][] source;
+
+  // [level][face][texel * 3]: linear box-filtered pyramid of the faces.
+  private final float[][][] box;
+
+  // [level][face][texel]: prefiltered texels packed as 0xAABBGGRR. Level 0 is not stored.
+  private final int[][][] filtered;
+
+  // [level][face][block]: blocks to recompute, and levels changed since moveChangedLevels().
+  private final boolean[][][] dirtyBlocks;
+  private final boolean[][] changedLevels;
+
+  // Per level: tangent-space sample directions {x, y, z}, their weights and the box level they
+  // are read from.
+  private final float[][] sampleDirections;
+  private final float[][] sampleWeights;
+  private final int[][] sampleLevels;
+
+  // Per level: cosine of the largest angle between a changed source tile and an output block
+  // that the lobe can still connect.
+  private final float[] reachCosines;
+
+  // [level][face][block * 3]: unit direction through the center of every block, and the same
+  // for the source tiles of level 0.
+  private final float[][][] blockCenters;
+  private final float[][] tileCenters;
+
+  private final float[] direction = new float[3];
+  private final float[] tangent = new float[3];
+  private final float[] bitangent = new float[3];
+
+  private boolean running;
+  private int level;
+  private int cursor;
+
+  /**
+   * @param faces The face texels to filter, packed as 0xAABBGGRR. Only read during {@link
+   *     #sync(DirtyTiles)}.
+   */
+  public EnvironmentPrefilter(EnvironmentLayout layout, int size, int[][] faces) {
+    assert(Integer.bitCount(size) == 1);
+    this.layout = layout;
+    this.faceCount = layout.getFaceCount();
+    this.size = size;
+    this.faces = faces;
+    levels = Integer.numberOfTrailingZeros(size) + 1;
+
+    source = new int[faceCount][size * size];
+    box = new float[levels][faceCount][];
+    filtered = new int[levels][faceCount][];
+    dirtyBlocks = new boolean[levels][faceCount][];
+    changedLevels = new boolean[levels][faceCount];
+    blockCenters = new float[levels][faceCount][];
+    for (int l = 0; l < levels; l++) {
+      int side = size >> l;
+      int blocks = blocksPerSide(l);
+      for (int f = 0; f < faceCount; f++) {
+        box[l][f] = new float[side * side * 3];
+        if (l > 0) {
+          filtered[l][f] = new int[side * side];
+          Arrays.fill(filtered[l][f], BLACK);
+          dirtyBlocks[l][f] = new boolean[blocks * blocks];
+          blockCenters[l][f] = regionCenters(f, blocks);
+          changedLevels[l][f] = true;
+        }
+      }
+    }
+    tileCenters = new float[faceCount][];
+    int tiles = (size + DirtyTiles.TILE_SIZE - 1) / DirtyTiles.TILE_SIZE;
+    for (int f = 0; f < faceCount; f++) {
+      tileCenters[f] = regionCenters(f, tiles);
+    }
+
+    sampleDirections = new float[levels][];
+    sampleWeights = new float[levels][];
+    sampleLevels = new int[levels][];
+    reachCosines = new float[levels];
+    for (int l = 1; l < levels; l++) {
+      buildSamples(l, tiles);
+    }
+  }
+
+  /** Returns the number of levels, including level 0. */
+  public int getLevelCount() {
+    return levels;
+  }
+
+  /**
+   * Returns the texels of a face at a level, row-major from the top-left and packed as
+   * 0xAABBGGRR. Level 0 returns the faces passed to the constructor.
+   */
+  public int[] getLevel(int level, int face) {
+    return level == 0 ? faces[face] : filtered[level][face];
+  }
+
+  /** Returns the GGX roughness the given level is convolved with. */
+  public float getRoughness(int level) {
+    return level / (float) (levels - 1);
+  }
+
+  /** Returns true if there is no pending work. */
+  public boolean isIdle() {
+    return !running;
+  }
+
+  /**
+   * Picks up the face texels changed in the marked tiles. Tiles are compared against the last
+   * sync, so the same marks can be passed again without redoing work.
+   */
+  public void sync(DirtyTiles dirtyTiles) {
+    int tiles = dirtyTiles.getTilesPerSide();
+    for (int face = 0; face < faceCount; face++) {
+      if (!dirtyTiles.isFaceDirty(face)) {
+        continue;
+      }
+      for (int tileY = 0; tileY < tiles; tileY++) {
+        for (int tileX = 0; tileX < tiles; tileX++) {
+          if (dirtyTiles.isDirty(face, tileX, tileY) && syncTile(face, tileX, tileY)) {
+            markReachable(face, tileY * tiles + tileX);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Recomputes the dirty blocks, level by level, until they are done or the budget is spent.
+   * The budget is checked after every block, so a call may overrun it slightly. Long.MAX_VALUE
+   * runs to the end.
+   *
+   * @return true if every level is up to date.
+   */
+  public boolean filter(long budgetNanos) {
+    final long deadline = System.nanoTime() + budgetNanos;
+    while (running) {
+      if (level >= levels) {
+        // Blocks marked while this pass was running start a new one
+        running = anyDirty();
+        level = 1;
+        cursor = 0;
+        continue;
+      }
+      int blocks = blocksPerSide(level);
+      if (cursor >= blocks * blocks * faceCount) {
+        level++;
+        cursor = 0;
+        continue;
+      }
+      int face = cursor / (blocks * blocks);
+      int block = cursor % (blocks * blocks);
+      cursor++;
+      if (!dirtyBlocks[level][face][block]) {
+        continue;
+      }
+      dirtyBlocks[level][face][block] = false;
+      filterBlock(level, face, block % blocks, block / blocks);
+      if (System.nanoTime() - deadline > 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Moves the flags of the levels changed since the last call into {@code target}, indexed
+   * [level][face], and clears them.
+   */
+  public void moveChangedLevels(boolean[][] target) {
+    for (int l = 1; l < levels; l++) {
+      for (int f = 0; f < faceCount; f++) {
+        target[l][f] = changedLevels[l][f];
+        changedLevels[l][f] = false;
+      }
+    }
+  }
+
+  /**
+   * Copies one source tile if it changed, and updates the box pyramid above it.
+   *
+   * @return true if any texel of the tile changed.
+   */
+  private boolean syncTile(int face, int tileX, int tileY) {
+    int x0 = tileX * DirtyTiles.TILE_SIZE, y0 = tileY * DirtyTiles.TILE_SIZE;
+    int x1 = Math.min(x0 + DirtyTiles.TILE_SIZE, size);
+    int y1 = Math.min(y0 + DirtyTiles.TILE_SIZE, size);
+    int[] src = faces[face];
+    int[] copy = source[face];
+    float[] base = box[0][face];
+    boolean changed = false;
+    for (int y = y0; y < y1; y++) {
+      for (int x = x0; x < x1; x++) {
+        int texel = y * size + x;
+        int rgba = src[texel];
+        if (rgba == copy[texel]) {
+          continue;
+        }
+        copy[texel] = rgba;
+        base[texel * 3] = RadianceAccumulator.decode(rgba);
+        base[texel * 3 + 1] = RadianceAccumulator.decode(rgba >> 8);
+        base[texel * 3 + 2] = RadianceAccumulator.decode(rgba >> 16);
+        changed = true;
+      }
+    }
+    if (!changed) {
+      return false;
+    }
+
+    // Average the 2x2 children of every parent above the tile, up to the 1x1 top
+    for (int l = 1; l < levels; l++) {
+      x0 >>= 1;
+      y0 >>= 1;
+      x1 = Math.max(x0 + 1, x1 >> 1);
+      y1 = Math.max(y0 + 1, y1 >> 1);
+      int side = size >> l;
+      float[] children = box[l - 1][face];
+      float[] parents = box[l][face];
+      for (int y = y0; y < y1; y++) {
+        for (int x = x0; x < x1; x++) {
+          int first = (y * 2 * side * 2 + x * 2) * 3;
+          int below = first + side * 2 * 3;
+          int p = (y * side + x) * 3;
+          for (int c = 0; c < 3; c++) {
+            parents[p + c] =
+                0.25f * (children[first + c] + children[first + 3 + c]
+                    + children[below + c] + children[below + 3 + c]);
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  /** Marks every output block whose lobe can reach the given source tile. */
+  private void markReachable(int tileFace, int tile) {
+    float[] tileCenter = tileCenters[tileFace];
+    float tx = tileCenter[tile * 3], ty = tileCenter[tile * 3 + 1], tz = tileCenter[tile * 3 + 2];
+    for (int l = 1; l < levels; l++) {
+      float reach = reachCosines[l];
+      for (int f = 0; f < faceCount; f++) {
+        float[] centers = blockCenters[l][f];
+        boolean[] dirty = dirtyBlocks[l][f];
+        for (int b = 0; b < dirty.length; b++) {
+          if (!dirty[b]
+              && tx * centers[b * 3] + ty * centers[b * 3 + 1] + tz * centers[b * 3 + 2]
+                  >= reach) {
+            dirty[b] = true;
+          }
+        }
+      }
+    }
+    if (!running) {
+      running = true;
+      level = 1;
+      cursor = 0;
+    }
+  }
+
+  /** Convolves the texels of one output block with the lobe of its level. */
+  private void filterBlock(int level, int face, int blockX, int blockY) {
+    int side = size >> level;
+    int span = Math.min(BLOCK_SIZE, side);
+    float[] samples = sampleDirections[level];
+    float[] weights = sampleWeights[level];
+    int[] sampleLevel = sampleLevels[level];
+    int[] target = filtered[level][face];
+
+    for (int y = blockY * span; y < (blockY + 1) * span; y++) {
+      for (int x = blockX * span; x < (blockX + 1) * span; x++) {
+        layout.getTexelDirection(face, x, y, side, direction);
+        normalize(direction);
+        buildTangentFrame(direction);
+
+        float r = 0, g = 0, b = 0, w = 0;
+        for (int s = 0; s < weights.length; s++) {
+          float lx = samples[s * 3], ly = samples[s * 3 + 1], lz = samples[s * 3 + 2];
+          float dirX = tangent[0] * lx + bitangent[0] * ly + direction[0] * lz;
+          float dirY = tangent[1] * lx + bitangent[1] * ly + direction[1] * lz;
+          float dirZ = tangent[2] * lx + bitangent[2] * ly + direction[2] * lz;
+          int l = sampleLevel[s];
+          int sampleSide = size >> l;
+          int texel = layout.getTexel(dirX, dirY, dirZ, sampleSide);
+          int i = (texel % (sampleSide * sampleSide)) * 3;
+          float[] texels = box[l][texel / (sampleSide * sampleSide)];
+          float weight = weights[s];
+          r += texels[i] * weight;
+          g += texels[i + 1] * weight;
+          b += texels[i + 2] * weight;
+          w += weight;
+        }
+
+        int rgba = RadianceAccumulator.encode(r / w, g / w, b / w);
+        int texel = y * side + x;
+        if (target[texel] != rgba) {
+          target[texel] = rgba;
+          changedLevels[level][face] = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Importance samples the GGX lobe of a level around the normal, assuming the view direction
+   * equals the normal, and works out how far from a block a source change can matter.
+   */
+  private void buildSamples(int level, int tilesPerSide) {
+    float roughness = getRoughness(level);
+    float alpha = roughness * roughness;
+    float alpha2 = alpha * alpha;
+    // Solid angle of one texel at the base level, used to pick the level each sample reads
+    double texelSolidAngle = 4 * Math.PI / (faceCount * size * size);
+
+    float[] directions = new float[SAMPLE_COUNT * 3];
+    float[] weights = new float[SAMPLE_COUNT];
+    int[] sampleLevel = new int[SAMPLE_COUNT];
+    int count = 0;
+    double maxAngle = 0;
+    for (int i = 0; i < SAMPLE_COUNT; i++) {
+      // Hammersley point set
+      double u = (i + 0.5) / SAMPLE_COUNT;
+      double v = (Integer.reverse(i) >>> 1) / (double) (1L << 31);
+      double phi = 2 * Math.PI * u;
+      double cosTheta = Math.sqrt((1 - v) / (1 + (alpha2 - 1) * v));
+      double sinTheta = Math.sqrt(1 - cosTheta * cosTheta);
+      // Reflect the normal about the half vector
+      double nDotL = 2 * cosTheta * cosTheta - 1;
+      if (nDotL <= 0) {
+        continue;
+      }
+      directions[count * 3] = (float) (2 * cosTheta * sinTheta * Math.cos(phi));
+      directions[count * 3 + 1] = (float) (2 * cosTheta * sinTheta * Math.sin(phi));
+      directions[count * 3 + 2] = (float) nDotL;
+      weights[count] = (float) nDotL;
+
+      // With the view along the normal, pdf(L) = D(H) / 4
+      double denominator = (alpha2 - 1) * cosTheta * cosTheta + 1;
+      double pdf = alpha2 / (Math.PI * denominator * denominator) / 4;
+      double sampleSolidAngle = 1 / (SAMPLE_COUNT * pdf);
+      double lod = 0.5 * Math.log(sampleSolidAngle / texelSolidAngle) / Math.log(2) + 1;
+      int l = Math.max(0, Math.min(levels - 1, (int) Math.round(lod)));
+      sampleLevel[count] = l;
+
+      // A sample reads a whole box texel, so its footprint widens the reach
+      double footprint = (2.0 / (size >> l)) * Math.sqrt(2) * layout.getMaxStretch();
+      maxAngle = Math.max(maxAngle, Math.acos(nDotL) + footprint);
+      count++;
+    }
+    sampleDirections[level] = Arrays.copyOf(directions, count * 3);
+    sampleWeights[level] = Arrays.copyOf(weights, count);
+    sampleLevels[level] = Arrays.copyOf(sampleLevel, count);
+
+    // Conservative reach: lobe plus the angular radius of a source tile and an output block
+    double tileRadius = layout.getRegionRadius(tilesPerSide);
+    double blockRadius = layout.getRegionRadius(blocksPerSide(level));
+    double reach = maxAngle + tileRadius + blockRadius;
+    reachCosines[level] = reach >= Math.PI ? -1 : (float) Math.cos(reach);
+  }
+
+  private int blocksPerSide(int level) {
+    return Math.max(1, (size >> level) / BLOCK_SIZE);
+  }
+
+  /** Returns the unit direction through the center of every cell of an n * n grid on a face. */
+  private float[] regionCenters(int face, int n) {
+    float[] centers = new float[n * n * 3];
+    float[] dir = new float[3];
+    for (int y = 0; y < n; y++) {
+      for (int x = 0; x < n; x++) {
+        layout.getTexelDirection(face, x, y, n, dir);
+        normalize(dir);
+        System.arraycopy(dir, 0, centers, (y * n + x) * 3, 3);
+      }
+    }
+    return centers;
+  }
+
+  /** Builds tangent and bitangent perpendicular to the unit vector n. */
+  private void buildTangentFrame(float[] n) {
+    float upX = 0, upY = 0, upZ = 1;
+    if (Math.abs(n[2]) > 0.999f) {
+      upX = 1;
+      upZ = 0;
+    }
+    tangent[0] = upY * n[2] - upZ * n[1];
+    tangent[1] = upZ * n[0] - upX * n[2];
+    tangent[2] = upX * n[1] - upY * n[0];
+    normalize(tangent);
+    bitangent[0] = n[1] * tangent[2] - n[2] * tangent[1];
+    bitangent[1] = n[2] * tangent[0] - n[0] * tangent[2];
+    bitangent[2] = n[0] * tangent[1] - n[1] * tangent[0];
+  }
+
+  private boolean anyDirty() {
+    for (int l = 1; l < levels; l++) {
+      for (int f = 0; f < faceCount; f++) {
+        for (boolean dirty : dirtyBlocks[l][f]) {
+          if (dirty) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private static void normalize(float[] v) {
+    float invLength = 1.0f / (float) Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+    v[0] *= invLength;
+    v[1] *= invLength;
+    v[2] *= invLength;
+  }
+}
@@ -0,0 +1,211 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The OpenGL side of an {@link AREnvironment}: a single texture, whose mip levels hold the
+ * prefiltered levels of {@link EnvironmentPrefilter}, so a shader samples the environment in a
+ * world direction with a single call. It is a GL_TEXTURE_CUBE_MAP for {@link
+ * EnvironmentLayout#CUBE}, sampled with textureCube(), and a 2D texture for {@link
+ * EnvironmentLayout#OCTAHEDRAL}, sampled at the octahedral coordinates of the direction. Only the
+ * tiles and levels that changed since the last upload are sent to the driver. The texture stores
+ * the environment's {@link FaceFormat}.
+ *
+ * <p>For debugging, the faces can also be kept in one 2D texture each, to be shown with a {@link
+ * QuadRenderer}. They are laid out like the environment map, see {@link
+ * EnvironmentLayout#isTextureFlippedX(int)}.
+ */
+public class EnvironmentTextures {
+  private final Texture environmentMap;
+  // Null unless the debug faces were requested.
+  private final Texture[] faceTextures;
+  private final EnvironmentLayout layout;
+  private final int faceCount;
+  private final int size;
+  private final FaceFormat format;
+  private final int bytesPerTexel;
+
+  // Staging buffer for one run of dirty tiles. OpenGL ES 2.0 has no GL_UNPACK_ROW_LENGTH, so a
+  // sub-rectangle has to be tightly packed before it is uploaded.
+  private final ByteBuffer staging;
+
+  private int uploadedBytes;
+  private long totalUploadedBytes;
+
+  public EnvironmentTextures(AREnvironment env) {
+    this(env, false);
+  }
+
+  /**
+   * @param debugFaces Whether to also upload every face into a 2D texture of its own, see {@link
+   *     #getFaceTexture(int)}.
+   */
+  public EnvironmentTextures(AREnvironment env, boolean debugFaces) {
+    layout = env.getLayout();
+    faceCount = env.getFaceCount();
+    size = env.getSize();
+    format = env.getFaceFormat();
+    bytesPerTexel = format.getBytesPerTexel();
+    if (layout == EnvironmentLayout.CUBE) {
+      environmentMap =
+          Texture.createCubeMap(size, true, format.getGlFormat(), format.getGlType());
+    } else {
+      environmentMap = new Texture(size, size, true, format.getGlFormat(), format.getGlType());
+    }
+    environmentMap.setFiltered(format.isFilterable());
+    if (debugFaces) {
+      faceTextures = new Texture[faceCount];
+      for (int i = 0; i < faceCount; i++) {
+        faceTextures[i] = new Texture(size, size, true, format.getGlFormat(), format.getGlType());
+        faceTextures[i].setFiltered(format.isFilterable());
+      }
+    } else {
+      faceTextures = null;
+    }
+    staging =
+        ByteBuffer.allocateDirect(size * DirtyTiles.TILE_SIZE * bytesPerTexel)
+            .order(ByteOrder.nativeOrder());
+  }
+
+  /** Returns the cube map or octahedral texture, see {@link Texture#isCubeMap()}. */
+  public Texture getEnvironmentMap() {
+    return environmentMap;
+  }
+
+  /** Returns the debug texture of a face, or null if the debug faces were not requested. */
+  public Texture getFaceTexture(int i) {
+    return faceTextures == null ? null : faceTextures[i];
+  }
+
+  public FaceFormat getFormat() {
+    return format;
+  }
+
+  /** Returns the number of bytes sent by the last call to {@link #load(FaceBuffers)}. */
+  public int getUploadedBytes() {
+    return uploadedBytes;
+  }
+
+  /** Returns the number of bytes sent by all calls to {@link #load(FaceBuffers)} so far. */
+  public long getTotalUploadedBytes() {
+    return totalUploadedBytes;
+  }
+
+  /**
+   * Allocates the environment map. Must be called on the OpenGL thread. The debug face textures are
+   * created by the renderers they are handed to, like {@link QuadRenderer}.
+   */
+  public void createOnGlThread(Context context) throws IOException {
+    environmentMap.createOnGlThread(context);
+  }
+
+  /**
+   * Uploads the dirty tiles and levels of faces produced by {@link
+   * AREnvironment#copyFaces(FaceBuffers)}. Consecutive dirty tiles in a tile row are sent as one
+   * rectangle, and all faces and levels go up within a single bind of the environment map. The
+   * debug faces follow, each within a bind of its own. Must be called on the OpenGL thread.
+   *
+   * @return the number of bytes uploaded to the environment map.
+   */
+  public int load(FaceBuffers faces) {
+    environmentMap.bind();
+    uploadedBytes = 0;
+    for (int face = 0; face < faceCount; face++) {
+      uploadedBytes += uploadFace(environmentMap, face, face, faces);
+    }
+    environmentMap.unbind();
+    if (faceTextures != null) {
+      for (int face = 0; face < faceCount; face++) {
+        faceTextures[face].bind();
+        uploadFace(faceTextures[face], 0, face, faces);
+        faceTextures[face].unbind();
+      }
+    }
+
+    faces.getDirtyTiles().clear();
+    boolean[][] dirtyLevels = faces.getDirtyLevels();
+    for (boolean[] levelFaces : dirtyLevels) {
+      Arrays.fill(levelFaces, false);
+    }
+    totalUploadedBytes += uploadedBytes;
+    return uploadedBytes;
+  }
+
+  /**
+   * Uploads the dirty tiles and levels of a face into the bound {@code texture}, as its face
+   * {@code textureFace}.
+   *
+   * @return the number of bytes uploaded.
+   */
+  private int uploadFace(Texture texture, int textureFace, int face, FaceBuffers faces) {
+    int bytes = 0;
+    DirtyTiles dirtyTiles = faces.getDirtyTiles();
+    if (dirtyTiles.isFaceDirty(face)) {
+      int tiles = dirtyTiles.getTilesPerSide();
+      ByteBuffer pixels = faces.getFace(face);
+      for (int tileY = 0; tileY < tiles; tileY++) {
+        int tileX = 0;
+        while (tileX < tiles) {
+          if (!dirtyTiles.isDirty(face, tileX, tileY)) {
+            tileX++;
+            continue;
+          }
+          int runBegin = tileX;
+          while (tileX < tiles && dirtyTiles.isDirty(face, tileX, tileY)) {
+            tileX++;
+          }
+          bytes += uploadRect(texture, textureFace, face, pixels, runBegin, tileX, tileY);
+        }
+      }
+    }
+
+    // The prefiltered levels are a third of the base level at most, so they go up whole
+    boolean[][] dirtyLevels = faces.getDirtyLevels();
+    for (int level = 1; level < faces.getLevelCount(); level++) {
+      if (dirtyLevels[level][face]) {
+        int side = size >> level;
+        texture.subImage(textureFace, level, 0, 0, side, side, faces.getLevel(level, face));
+        bytes += side * side * bytesPerTexel;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Packs the tiles [tileBegin, tileEnd) of a tile row into the staging buffer and uploads them
+   * into the bound {@code texture}. The tiles are in the layout of the environment, the pixels in
+   * the layout of the texture.
+   *
+   * @return the number of bytes uploaded.
+   */
+  private int uploadRect(Texture texture, int textureFace, int face, ByteBuffer pixels,
+      int tileBegin, int tileEnd, int tileY) {
+    int x = tileBegin * DirtyTiles.TILE_SIZE;
+    int y = tileY * DirtyTiles.TILE_SIZE;
+    int w = Math.min(tileEnd * DirtyTiles.TILE_SIZE, size) - x;
+    int h = Math.min(DirtyTiles.TILE_SIZE, size - y);
+    if (layout.isTextureFlippedX(face)) {
+      x = size - x - w;
+    }
+    if (layout.isTextureFlippedY(face)) {
+      y = size - y - h;
+    }
+
+    staging.clear();
+    for (int row = y; row < y + h; row++) {
+      pixels.limit((row * size + x + w) * bytesPerTexel);
+      pixels.position((row * size + x) * bytesPerTexel);
+      staging.put(pixels);
+    }
+    pixels.clear();
+    staging.flip();
+
+    texture.subImage(textureFace, 0, x, y, w, h, staging);
+    return w * h * bytesPerTexel;
+  }
+}
@@ -0,0 +1,99 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A snapshot of the environment faces and their prefiltered levels in direct buffers, ready for
+ * upload, together with the tiles and levels that changed since the previous upload and the
+ * lighting estimated at the time of the snapshot.
+ */
+public class FaceBuffers {
+  private final int size;
+  private final FaceFormat format;
+  // [level][face], level 0 being the faces themselves.
+  private final ByteBuffer[][] levels;
+  private final DirtyTiles dirtyTiles;
+  // [level][face], only meaningful for levels above 0, which are tracked by dirtyTiles.
+  private final boolean[][] dirtyLevels;
+  private final float[] irradianceCoefficients =
+      new float[SphericalHarmonics.NUM_COEFFICIENTS * 3];
+  private final float[] lightDirection = new float[3];
+  private final float[] lightColor = new float[3];
+
+  public FaceBuffers(int faceCount, int size, int levelCount, FaceFormat format) {
+    this.size = size;
+    this.format = format;
+    levels = new ByteBuffer[levelCount][faceCount];
+    for (int level = 0; level < levelCount; level++) {
+      int side = size >> level;
+      for (int i = 0; i < faceCount; i++) {
+        levels[level][i] =
+            ByteBuffer.allocateDirect(side * side * format.getBytesPerTexel())
+                .order(ByteOrder.nativeOrder());
+      }
+    }
+    dirtyTiles = new DirtyTiles(faceCount, size);
+    dirtyLevels = new boolean[levelCount][faceCount];
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getLevelCount() {
+    return levels.length;
+  }
+
+  public FaceFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * Returns the texels of a face, row-major as laid out in its texture, see {@link
+   * EnvironmentLayout#isTextureFlippedX(int)}, encoded in {@link #getFormat()} in native byte
+   * order.
+   */
+  public ByteBuffer getFace(int i) {
+    return levels[0][i];
+  }
+
+  /** Returns the texels of a face at a prefiltered level, laid out like {@link #getFace(int)}. */
+  public ByteBuffer getLevel(int level, int i) {
+    return levels[level][i];
+  }
+
+  public DirtyTiles getDirtyTiles() {
+    return dirtyTiles;
+  }
+
+  /** Returns the levels to upload, indexed [level][face]. */
+  public boolean[][] getDirtyLevels() {
+    return dirtyLevels;
+  }
+
+  /** Adds the dirty tiles and levels of {@code other}, a snapshot that was never uploaded. */
+  public void addDirty(FaceBuffers other) {
+    dirtyTiles.or(other.dirtyTiles);
+    for (int level = 0; level < dirtyLevels.length; level++) {
+      for (int i = 0; i < dirtyLevels[level].length; i++) {
+        dirtyLevels[level][i] |= other.dirtyLevels[level][i];
+      }
+    }
+  }
+
+  /** See {@link SphericalHarmonics#getIrradianceCoefficients(float[])}. */
+  public float[] getIrradianceCoefficients() {
+    return irradianceCoefficients;
+  }
+
+  /** See {@link DominantLight#getDirection(float[])}. */
+  public float[] getLightDirection() {
+    return lightDirection;
+  }
+
+  /** See {@link DominantLight#getColor(float[])}. */
+  public float[] getLightColor() {
+    return lightColor;
+  }
+}
@@ -0,0 +1,65 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.opengl.GLES20;
+
+/**
+ * How environment texels are stored in {@link FaceBuffers} and the face textures. The encoding
+ * is done by {@link AREnvironment#copyFaces(FaceBuffers)}, the decoding by the shaders sampling
+ * the faces, which get {@link #getShaderId()} to pick the decode.
+ */
+public enum FaceFormat {
+  /** sRGB color, 4 bytes per texel. Limited to [0, 1]. */
+  RGBA8888(4, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, true),
+  /**
+   * Linear color divided by a per-texel multiplier M in alpha, times RGBM_RANGE, 4 bytes per
+   * texel. Holds [0, RGBM_RANGE] with the precision of the brightest channel.
+   */
+  RGBM(4, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, true),
+  /**
+   * Linear color as 8-bit mantissas sharing the exponent in alpha, 4 bytes per texel. Holds a
+   * practically unlimited range, but interpolating the shared exponent is meaningless, so the
+   * textures are sampled without filtering.
+   */
+  RGBE(4, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, false),
+  /** sRGB color in 5, 6 and 5 bits, 2 bytes per texel. Limited to [0, 1]. */
+  RGB565(2, GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5, true);
+
+  /** Largest linear value RGBM can hold. */
+  public static final float RGBM_RANGE = 8;
+
+  private final int bytesPerTexel;
+  private final int glFormat;
+  private final int glType;
+  private final boolean filterable;
+
+  FaceFormat(int bytesPerTexel, int glFormat, int glType, boolean filterable) {
+    this.bytesPerTexel = bytesPerTexel;
+    this.glFormat = glFormat;
+    this.glType = glType;
+    this.filterable = filterable;
+  }
+
+  public int getBytesPerTexel() {
+    return bytesPerTexel;
+  }
+
+  /** Returns the format argument of glTexImage2D. */
+  public int getGlFormat() {
+    return glFormat;
+  }
+
+  /** Returns the type argument of glTexImage2D. */
+  public int getGlType() {
+    return glType;
+  }
+
+  /** Returns whether the texels can be interpolated as they are stored. */
+  public boolean isFilterable() {
+    return filterable;
+  }
+
+  /** Returns the value of the u_FaceFormat shader uniform that decodes this format. */
+  public int getShaderId() {
+    return ordinal();
+  }
+}
@@ -0,0 +1,267 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary log of {@link RecordedFrame}s, written on the device by {@link FrameRecorder} and read
+ * back by the replay harness.
+ *
+ * <p>The file is a fixed header followed by one record per frame, all little-endian and aligned
+ * to four bytes. A record starts with its own length in bytes, then holds the timestamp, the
+ * image size, the projection and view matrices, the light estimate, the three YUV planes with
+ * their strides and bytes as the camera delivered them, the point cloud, and every plane as its
+ * pose matrix, extents and polygon. Nothing is compressed, so the reader memory-maps the file
+ * and copies straight out of the mapping; a 640 * 480 frame takes about 600 KB, as the U and V
+ * planes of interleaved chroma are stored whole each.
+ *
+ * <p>A log is limited to MAX_LOG_BYTES, about 2 GB, so that it can be mapped as a whole. A record
+ * cut short by the app being killed ends the log, the records before it stay readable.
+ */
+public final class FrameLog {
+  private static final int MAGIC = 0x4c465241; // "ARFL" in little-endian
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 8;
+  private static final long MAX_LOG_BYTES = Integer.MAX_VALUE;
+
+  private FrameLog() {}
+
+  /** Appends frames to a new log. Not thread-safe. */
+  public static class Writer implements Closeable {
+    private final FileOutputStream stream;
+    private final FileChannel channel;
+    private long bytesWritten;
+    // Reused between frames, grows to the largest record.
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(0).order(ByteOrder.LITTLE_ENDIAN);
+
+    /** Creates {@code file}, replacing an existing one, and writes the header. */
+    public Writer(File file) throws IOException {
+      stream = new FileOutputStream(file);
+      channel = stream.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC);
+      header.putInt(VERSION);
+      header.flip();
+      write(header);
+    }
+
+    /** Returns the size of the log so far. */
+    public long getBytesWritten() {
+      return bytesWritten;
+    }
+
+    /**
+     * Appends a frame.
+     *
+     * @return false if the frame would make the log larger than MAX_LOG_BYTES and was dropped.
+     */
+    public boolean write(RecordedFrame frame) throws IOException {
+      CameraFrame camera = frame.getCamera();
+      int bytes = getRecordBytes(frame);
+      if (bytesWritten + bytes > MAX_LOG_BYTES) {
+        return false;
+      }
+      if (buffer.capacity() < bytes) {
+        buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+      }
+      buffer.clear();
+      buffer.putInt(bytes);
+      buffer.putLong(camera.getTimestamp());
+      buffer.putInt(camera.getWidth());
+      buffer.putInt(camera.getHeight());
+      putFloats(camera.getProjectionMatrix(), 0, 16);
+      putFloats(camera.getViewMatrix(), 0, 16);
+      putFloats(frame.getColorCorrection(), 0, 4);
+      buffer.putFloat(frame.getPixelIntensity());
+      for (int i = 0; i < CameraFrame.NUM_PLANES; i++) {
+        ByteBuffer plane = camera.getPlane(i).duplicate();
+        buffer.putInt(camera.getRowStride(i));
+        buffer.putInt(camera.getPixelStride(i));
+        buffer.putInt(plane.remaining());
+        buffer.put(plane);
+        while ((buffer.position() & 3) != 0) {
+          buffer.put((byte) 0);
+        }
+      }
+      FloatBuffer points = frame.getPoints().duplicate();
+      buffer.putInt(points.remaining());
+      putFloats(points);
+      buffer.putInt(frame.getPlaneCount());
+      for (int i = 0; i < frame.getPlaneCount(); i++) {
+        putFloats(frame.getPlaneMatrices(), i * 16, 16);
+        buffer.putFloat(frame.getPlaneExtentX(i));
+        buffer.putFloat(frame.getPlaneExtentZ(i));
+        FloatBuffer polygon = frame.getPlanePolygon(i);
+        buffer.putInt(polygon.remaining());
+        putFloats(polygon);
+      }
+      buffer.flip();
+      write(buffer);
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      stream.close();
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+      bytesWritten += data.remaining();
+      while (data.hasRemaining()) {
+        channel.write(data);
+      }
+    }
+
+    private void putFloats(float[] values, int offset, int count) {
+      buffer.asFloatBuffer().put(values, offset, count);
+      buffer.position(buffer.position() + count * 4);
+    }
+
+    private void putFloats(FloatBuffer values) {
+      int count = values.remaining();
+      buffer.asFloatBuffer().put(values);
+      buffer.position(buffer.position() + count * 4);
+    }
+
+    private static int getRecordBytes(RecordedFrame frame) {
+      CameraFrame camera = frame.getCamera();
+      // Length, timestamp, size, matrices and light estimate
+      int bytes = 4 + 8 + 2 * 4 + 32 * 4 + 5 * 4;
+      for (int i = 0; i < CameraFrame.NUM_PLANES; i++) {
+        bytes += 3 * 4 + align(camera.getPlane(i).remaining());
+      }
+      bytes += 4 + frame.getPoints().remaining() * 4;
+      bytes += 4;
+      for (int i = 0; i < frame.getPlaneCount(); i++) {
+        bytes += 18 * 4 + 4 + frame.getPlanePolygon(i).remaining() * 4;
+      }
+      return bytes;
+    }
+  }
+
+  /** Reads the frames of a log from a read-only mapping of the whole file. */
+  public static class Reader {
+    private final MappedByteBuffer mapped;
+    private final int frameCount;
+    private final float[] projection = new float[16];
+    private final float[] matrix = new float[16];
+    private final float[] colorCorrection = new float[4];
+
+    public Reader(File file) throws IOException {
+      FileInputStream stream = new FileInputStream(file);
+      try {
+        FileChannel channel = stream.getChannel();
+        if (channel.size() > MAX_LOG_BYTES) {
+          throw new IOException("Frame log too large to map: " + file);
+        }
+        // The mapping stays valid after the channel is closed
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        stream.close();
+      }
+      mapped.order(ByteOrder.LITTLE_ENDIAN);
+      if (mapped.remaining() < HEADER_BYTES
+          || mapped.getInt() != MAGIC
+          || mapped.getInt() != VERSION) {
+        throw new IOException("Not a frame log of version " + VERSION + ": " + file);
+      }
+      frameCount = countFrames();
+      rewind();
+    }
+
+    /** Returns the number of complete frames in the log. */
+    public int getFrameCount() {
+      return frameCount;
+    }
+
+    /** Goes back to the first frame. */
+    public void rewind() {
+      mapped.position(HEADER_BYTES);
+    }
+
+    /**
+     * Reads the next frame into {@code frame}.
+     *
+     * @return false at the end of the log, leaving {@code frame} untouched.
+     */
+    public boolean next(RecordedFrame frame) {
+      int recordStart = mapped.position();
+      if (!isComplete(recordStart)) {
+        return false;
+      }
+      mapped.getInt();
+      CameraFrame camera = frame.getCamera();
+      long timestamp = mapped.getLong();
+      int width = mapped.getInt();
+      int height = mapped.getInt();
+      camera.setImage(width, height, timestamp);
+      getFloats(projection, 16);
+      getFloats(matrix, 16);
+      camera.setMatrices(projection, matrix);
+      getFloats(colorCorrection, 4);
+      frame.setLightEstimate(colorCorrection, mapped.getFloat());
+      for (int i = 0; i < CameraFrame.NUM_PLANES; i++) {
+        int rowStride = mapped.getInt();
+        int pixelStride = mapped.getInt();
+        int bytes = mapped.getInt();
+        ByteBuffer plane = mapped.duplicate();
+        plane.limit(plane.position() + bytes);
+        camera.setPlane(i, plane, rowStride, pixelStride);
+        mapped.position(align(mapped.position() + bytes));
+      }
+      frame.setPoints(getFloatBuffer(mapped.getInt()));
+      int planeCount = mapped.getInt();
+      frame.clearPlanes();
+      for (int i = 0; i < planeCount; i++) {
+        getFloats(matrix, 16);
+        float extentX = mapped.getFloat();
+        float extentZ = mapped.getFloat();
+        frame.addPlane(matrix, extentX, extentZ, getFloatBuffer(mapped.getInt()));
+      }
+      return true;
+    }
+
+    private int countFrames() {
+      int count = 0;
+      int position = HEADER_BYTES;
+      while (isComplete(position)) {
+        position += mapped.getInt(position);
+        count++;
+      }
+      return count;
+    }
+
+    private boolean isComplete(int recordStart) {
+      if (mapped.limit() - recordStart < 4) {
+        return false;
+      }
+      int bytes = mapped.getInt(recordStart);
+      return bytes > 0 && mapped.limit() - recordStart >= bytes;
+    }
+
+    private void getFloats(float[] values, int count) {
+      mapped.asFloatBuffer().get(values, 0, count);
+      mapped.position(mapped.position() + count * 4);
+    }
+
+    /** Returns the next {@code count} floats as a buffer over the mapping, and skips them. */
+    private FloatBuffer getFloatBuffer(int count) {
+      FloatBuffer floats = mapped.asFloatBuffer();
+      floats.limit(count);
+      mapped.position(mapped.position() + count * 4);
+      return floats;
+    }
+  }
+
+  private static int align(int bytes) {
+    return (bytes + 3) & ~3;
+  }
+}
@@ -0,0 +1,169 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.media.Image;
+import android.util.Log;
+
+import com.google.ar.core.Frame;
+import com.google.ar.core.LightEstimate;
+import com.google.ar.core.Plane;
+import com.google.ar.core.PointCloud;
+import com.google.ar.core.TrackingState;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records AR frames into a {@link FrameLog} for replay on a desktop JVM.
+ *
+ * <p>The OpenGL thread copies what it reads from a frame into a pooled {@link RecordedFrame},
+ * like {@link EnvironmentCapture} does with the camera image, and a background worker appends it
+ * to the log. If the worker falls behind the frame is dropped and counted, so recording never
+ * stalls rendering, but a replay then sees a gap.
+ */
+public class FrameRecorder {
+  private static final String TAG = FrameRecorder.class.getSimpleName();
+
+  private static final int FRAME_POOL_SIZE = 3;
+  private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+  private final FrameLog.Writer writer;
+  private final ExecutorService worker;
+  private final ConcurrentLinkedQueue<RecordedFrame> freeFrames =
+      new ConcurrentLinkedQueue<>();
+  private final float[] colorCorrection = new float[4];
+  private final float[] planeMatrix = new float[16];
+
+  // Set by the worker once the log cannot take more frames.
+  private volatile boolean stopped;
+  private int recordedCount;
+  private int droppedCount;
+
+  /** Creates {@code file}, replacing an existing log. */
+  public FrameRecorder(File file) throws IOException {
+    writer = new FrameLog.Writer(file);
+    for (int i = 0; i < FRAME_POOL_SIZE; i++) {
+      freeFrames.offer(new RecordedFrame());
+    }
+    worker =
+        Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FrameRecorder");
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+              }
+            });
+  }
+
+  /**
+   * Copies the camera image, the matrices, the light estimate, the point cloud and the tracked
+   * planes of a frame and queues them for writing. The image is left open for the caller. Must
+   * be called on the OpenGL thread.
+   *
+   * @return false if the frame was dropped, because the worker is behind or recording stopped.
+   */
+  public boolean record(
+      Frame frame, Image image, float[] projMat, float[] viewMat, Collection<Plane> planes) {
+    if (stopped) {
+      return false;
+    }
+    final RecordedFrame recorded = freeFrames.poll();
+    if (recorded == null) {
+      droppedCount++;
+      return false;
+    }
+
+    final long traceStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+    CameraFrame camera = recorded.getCamera();
+    camera.setImage(image.getWidth(), image.getHeight(), image.getTimestamp());
+    Image.Plane[] imagePlanes = image.getPlanes();
+    for (int i = 0; i < CameraFrame.NUM_PLANES; i++) {
+      camera.setPlane(
+          i,
+          imagePlanes[i].getBuffer(),
+          imagePlanes[i].getRowStride(),
+          imagePlanes[i].getPixelStride());
+    }
+    camera.setMatrices(projMat, viewMat);
+
+    LightEstimate lightEstimate = frame.getLightEstimate();
+    lightEstimate.getColorCorrection(colorCorrection, 0);
+    recorded.setLightEstimate(colorCorrection, lightEstimate.getPixelIntensity());
+
+    PointCloud pointCloud = frame.acquirePointCloud();
+    try {
+      recorded.setPoints(pointCloud.getPoints());
+    } finally {
+      pointCloud.release();
+    }
+
+    // Only the planes PlaneRenderer draws
+    recorded.clearPlanes();
+    for (Plane plane : planes) {
+      if (plane.getTrackingState() != TrackingState.TRACKING || plane.getSubsumedBy() != null) {
+        continue;
+      }
+      plane.getCenterPose().toMatrix(planeMatrix, 0);
+      recorded.addPlane(planeMatrix, plane.getExtentX(), plane.getExtentZ(), plane.getPolygon());
+    }
+    if (StageTimings.ENABLED) {
+      StageTimings.record(TraceRecorder.Stage.RECORD, traceStart);
+    }
+
+    recordedCount++;
+    worker.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            write(recorded);
+          }
+        });
+    return true;
+  }
+
+  /** Returns the number of frames queued for writing so far. */
+  public int getRecordedCount() {
+    return recordedCount;
+  }
+
+  /** Returns the number of frames dropped because the worker was behind. */
+  public int getDroppedCount() {
+    return droppedCount;
+  }
+
+  /** Writes the frames still queued and closes the log. */
+  public void close() throws IOException {
+    worker.shutdown();
+    try {
+      if (!worker.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        Log.w(TAG, "Frames still queued when closing the frame log");
+        worker.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      writer.close();
+    }
+  }
+
+  private void write(RecordedFrame recorded) {
+    try {
+      if (!stopped && !writer.write(recorded)) {
+        Log.w(TAG, "Frame log is full, recording stopped");
+        stopped = true;
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write the frame log, recording stopped", e);
+      stopped = true;
+    } finally {
+      freeFrames.offer(recorded);
+    }
+  }
+}
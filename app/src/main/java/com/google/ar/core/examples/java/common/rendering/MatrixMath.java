@@ -0,0 +1,64 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+/**
+ * Plain Java versions of the few {@link android.opengl.Matrix} operations used off the OpenGL
+ * thread, so the environment capture code does not depend on the Android framework. Matrices are
+ * 4x4 and column-major, like in android.opengl.Matrix.
+ */
+final class MatrixMath {
+  private MatrixMath() {}
+
+  /** Computes result = lhs * rhs for a 4-component vector. The result may not alias rhs. */
+  static void multiplyMV(float[] result, float[] lhs, float[] rhs) {
+    for (int row = 0; row < 4; row++) {
+      result[row] =
+          lhs[row] * rhs[0] + lhs[4 + row] * rhs[1] + lhs[8 + row] * rhs[2] + lhs[12 + row] * rhs[3];
+    }
+  }
+
+  /**
+   * Inverts a matrix using cofactor expansion.
+   *
+   * @return false if the matrix is singular or its inverse is not finite, e.g. for NaN entries,
+   *     in which case the result is left untouched.
+   */
+  static boolean invertM(float[] result, float[] m) {
+    float a0 = m[0] * m[5] - m[1] * m[4];
+    float a1 = m[0] * m[6] - m[2] * m[4];
+    float a2 = m[0] * m[7] - m[3] * m[4];
+    float a3 = m[1] * m[6] - m[2] * m[5];
+    float a4 = m[1] * m[7] - m[3] * m[5];
+    float a5 = m[2] * m[7] - m[3] * m[6];
+    float b0 = m[8] * m[13] - m[9] * m[12];
+    float b1 = m[8] * m[14] - m[10] * m[12];
+    float b2 = m[8] * m[15] - m[11] * m[12];
+    float b3 = m[9] * m[14] - m[10] * m[13];
+    float b4 = m[9] * m[15] - m[11] * m[13];
+    float b5 = m[10] * m[15] - m[11] * m[14];
+
+    float det = a0 * b5 - a1 * b4 + a2 * b3 + a3 * b2 - a4 * b1 + a5 * b0;
+    float invDet = 1.0f / det;
+    // Also catches a zero determinant, and one so small its reciprocal overflows
+    if (Float.isNaN(invDet) || Float.isInfinite(invDet) || invDet == 0) {
+      return false;
+    }
+
+    result[0] = (m[5] * b5 - m[6] * b4 + m[7] * b3) * invDet;
+    result[1] = (-m[1] * b5 + m[2] * b4 - m[3] * b3) * invDet;
+    result[2] = (m[13] * a5 - m[14] * a4 + m[15] * a3) * invDet;
+    result[3] = (-m[9] * a5 + m[10] * a4 - m[11] * a3) * invDet;
+    result[4] = (-m[4] * b5 + m[6] * b2 - m[7] * b1) * invDet;
+    result[5] = (m[0] * b5 - m[2] * b2 + m[3] * b1) * invDet;
+    result[6] = (-m[12] * a5 + m[14] * a2 - m[15] * a1) * invDet;
+    result[7] = (m[8] * a5 - m[10] * a2 + m[11] * a1) * invDet;
+    result[8] = (m[4] * b4 - m[5] * b2 + m[7] * b0) * invDet;
+    result[9] = (-m[0] * b4 + m[1] * b2 - m[3] * b0) * invDet;
+    result[10] = (m[12] * a4 - m[13] * a2 + m[15] * a0) * invDet;
+    result[11] = (-m[8] * a4 + m[9] * a2 - m[11] * a0) * invDet;
+    result[12] = (-m[4] * b3 + m[5] * b1 - m[6] * b0) * invDet;
+    result[13] = (m[0] * b3 - m[1] * b1 + m[2] * b0) * invDet;
+    result[14] = (-m[12] * a3 + m[13] * a1 - m[14] * a0) * invDet;
+    result[15] = (m[8] * a3 - m[9] * a1 + m[10] * a0) * invDet;
+    return true;
+  }
+}
@@ -48,14 +48,34 @@ public class ObjectRenderer {
     Grid
   }
 
+  /**
+   * Lighting mode.
+   *
+   * @see #setLightingMode(LightingMode)
+   */
+  public enum LightingMode {
+    /** Fixed hemisphere light scaled by the ARCore color correction. */
+    Directional,
+    /**
+     * Diffuse irradiance of the captured environment, as spherical harmonics, and its glossy
+     * reflection once {@link #setEnvironmentMap(Texture, FaceFormat)} is called.
+     */
+    Environment
+  }
+
   // Shader names.
   private static final String VERTEX_SHADER_NAME = "shaders/object.vert";
   private static final String FRAGMENT_SHADER_NAME = "shaders/object.frag";
+  private static final String SH_VERTEX_SHADER_NAME = "shaders/object_sh.vert";
+  private static final String SH_FRAGMENT_SHADER_NAME = "shaders/object_sh.frag";
 
   private static final int COORDS_PER_VERTEX = 3;
 
+  // Light used until setLight() is called, in world space.
+  private static final float[] LIGHT_DIRECTION = new float[] {0.250f, 0.866f, 0.433f};
+  private static final float[] LIGHT_COLOR = new float[] {1.0f, 1.0f, 1.0f};
   // Note: the last component must be zero to avoid applying the translational part of the matrix.
-  private static final float[] LIGHT_DIRECTION = new float[] {0.250f, 0.866f, 0.433f, 0.0f};
+  private final float[] worldLightDirection = new float[4];
   private final float[] viewLightDirection = new float[4];
 
   // Object vertex buffer variables.
@@ -70,6 +90,7 @@ public class ObjectRenderer {
   private final int[] textures = new int[1];
 
   // Shader location: model view projection matrix.
+  private int modelUniform;
   private int modelViewUniform;
   private int modelViewProjectionUniform;
 
@@ -83,6 +104,7 @@ public class ObjectRenderer {
 
   // Shader location: environment properties.
   private int lightingParametersUniform;
+  private int lightColorUniform;
 
   // Shader location: material properties.
   private int materialParametersUniform;
@@ -90,10 +112,28 @@ public class ObjectRenderer {
   // Shader location: color correction property
   private int colorCorrectionParameterUniform;
 
+  // Shader location: spherical harmonics irradiance.
+  private int sphericalHarmonicsUniform;
+
+  // Shader location: environment reflection.
+  private int environmentMapUniform;
+  private int octahedralMapUniform;
+  private int octahedralUniform;
+  private int faceFormatUniform;
+  private int environmentParametersUniform;
+  private int cameraPositionUniform;
+
   private BlendMode blendMode = null;
+  private LightingMode lightingMode = LightingMode.Directional;
+  private float[] irradianceCoefficients = new float[SphericalHarmonics.NUM_COEFFICIENTS * 3];
+  private float[] lightDirection = LIGHT_DIRECTION;
+  private float[] lightColor = LIGHT_COLOR;
+  private Texture environmentMap;
+  private FaceFormat environmentFormat = FaceFormat.RGBA8888;
 
   // Temporary matrices allocated here to reduce number of allocations for each frame.
   private final float[] modelMatrix = new float[16];
+  private final float[] inverseViewMatrix = new float[16];
   private final float[] modelViewMatrix = new float[16];
   private final float[] modelViewProjectionMatrix = new float[16];
 
@@ -114,10 +154,19 @@ public class ObjectRenderer {
    */
   public void createOnGlThread(Context context, String objAssetName, String diffuseTextureAssetName)
       throws IOException {
+    boolean environment = lightingMode == LightingMode.Environment;
     final int vertexShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+        ShaderUtil.loadGLShader(
+            TAG,
+            context,
+            GLES20.GL_VERTEX_SHADER,
+            environment ? SH_VERTEX_SHADER_NAME : VERTEX_SHADER_NAME);
     final int fragmentShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+        ShaderUtil.loadGLShader(
+            TAG,
+            context,
+            GLES20.GL_FRAGMENT_SHADER,
+            environment ? SH_FRAGMENT_SHADER_NAME : FRAGMENT_SHADER_NAME);
 
     program = GLES20.glCreateProgram();
     GLES20.glAttachShader(program, vertexShader);
@@ -127,6 +176,7 @@ public class ObjectRenderer {
 
     ShaderUtil.checkGLError(TAG, "Program creation");
 
+    modelUniform = GLES20.glGetUniformLocation(program, "u_Model");
     modelViewUniform = GLES20.glGetUniformLocation(program, "u_ModelView");
     modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ModelViewProjection");
 
@@ -137,9 +187,18 @@ public class ObjectRenderer {
     textureUniform = GLES20.glGetUniformLocation(program, "u_Texture");
 
     lightingParametersUniform = GLES20.glGetUniformLocation(program, "u_LightingParameters");
+    lightColorUniform = GLES20.glGetUniformLocation(program, "u_LightColor");
     materialParametersUniform = GLES20.glGetUniformLocation(program, "u_MaterialParameters");
     colorCorrectionParameterUniform =
         GLES20.glGetUniformLocation(program, "u_ColorCorrectionParameters");
+    sphericalHarmonicsUniform = GLES20.glGetUniformLocation(program, "u_SphericalHarmonics");
+    environmentMapUniform = GLES20.glGetUniformLocation(program, "u_EnvironmentMap");
+    octahedralMapUniform = GLES20.glGetUniformLocation(program, "u_OctahedralMap");
+    octahedralUniform = GLES20.glGetUniformLocation(program, "u_Octahedral");
+    faceFormatUniform = GLES20.glGetUniformLocation(program, "u_FaceFormat");
+    environmentParametersUniform =
+        GLES20.glGetUniformLocation(program, "u_EnvironmentParameters");
+    cameraPositionUniform = GLES20.glGetUniformLocation(program, "u_CameraPosition");
 
     ShaderUtil.checkGLError(TAG, "Program parameters");
 
@@ -235,6 +294,51 @@ public class ObjectRenderer {
     this.blendMode = blendMode;
   }
 
+  /**
+   * Selects how the model is lit. Must be called before {@link #createOnGlThread}, which picks the
+   * shaders.
+   */
+  public void setLightingMode(LightingMode lightingMode) {
+    this.lightingMode = lightingMode;
+  }
+
+  /**
+   * Sets the irradiance used in {@link LightingMode#Environment}. The array is read on every
+   * draw, so it can be updated in place.
+   *
+   * @param irradianceCoefficients 9 RGB coefficients, see {@link
+   *     SphericalHarmonics#getIrradianceCoefficients(float[])}.
+   */
+  public void setIrradianceCoefficients(float[] irradianceCoefficients) {
+    this.irradianceCoefficients = irradianceCoefficients;
+  }
+
+  /**
+   * Sets the environment reflected in {@link LightingMode#Environment}, sampled at the mip level
+   * that matches the specular power.
+   *
+   * @param environmentMap A cube map, or a 2D texture in the octahedral layout, see {@link
+   *     EnvironmentTextures#getEnvironmentMap()}.
+   * @param format How its texels are stored.
+   */
+  public void setEnvironmentMap(Texture environmentMap, FaceFormat format) {
+    this.environmentMap = environmentMap;
+    this.environmentFormat = format;
+  }
+
+  /**
+   * Sets the light that drives the directional lighting and the specular highlight. The arrays
+   * are read on every draw, so they can be updated in place.
+   *
+   * @param direction Unit direction towards the light, in world space.
+   * @param color Linear color of the light.
+   * @see DominantLight
+   */
+  public void setLight(float[] direction, float[] color) {
+    this.lightDirection = direction;
+    this.lightColor = color;
+  }
+
   /**
    * Updates the object model matrix and applies scaling.
    *
@@ -292,7 +396,10 @@ public class ObjectRenderer {
     GLES20.glUseProgram(program);
 
     // Set the lighting environment properties.
-    Matrix.multiplyMV(viewLightDirection, 0, modelViewMatrix, 0, LIGHT_DIRECTION, 0);
+    worldLightDirection[0] = lightDirection[0];
+    worldLightDirection[1] = lightDirection[1];
+    worldLightDirection[2] = lightDirection[2];
+    Matrix.multiplyMV(viewLightDirection, 0, cameraView, 0, worldLightDirection, 0);
     normalizeVec3(viewLightDirection);
     GLES20.glUniform4f(
         lightingParametersUniform,
@@ -300,6 +407,7 @@ public class ObjectRenderer {
         viewLightDirection[1],
         viewLightDirection[2],
         1.f);
+    GLES20.glUniform3f(lightColorUniform, lightColor[0], lightColor[1], lightColor[2]);
 
     GLES20.glUniform4f(
         colorCorrectionParameterUniform,
@@ -308,6 +416,40 @@ public class ObjectRenderer {
         colorCorrectionRgba[2],
         colorCorrectionRgba[3]);
 
+    if (lightingMode == LightingMode.Environment) {
+      GLES20.glUniform3fv(
+          sphericalHarmonicsUniform,
+          SphericalHarmonics.NUM_COEFFICIENTS,
+          irradianceCoefficients,
+          0);
+      GLES20.glUniformMatrix4fv(modelUniform, 1, false, modelMatrix, 0);
+
+      Matrix.invertM(inverseViewMatrix, 0, cameraView, 0);
+      GLES20.glUniform3f(
+          cameraPositionUniform,
+          inverseViewMatrix[12],
+          inverseViewMatrix[13],
+          inverseViewMatrix[14]);
+      if (environmentMap != null) {
+        // Blinn-Phong power to GGX roughness, whose levels the prefilter spreads evenly
+        float roughness = (float) Math.sqrt(2 / (specularPower + 2));
+        GLES20.glUniform2f(
+            environmentParametersUniform,
+            roughness * (environmentMap.getLevelCount() - 1),
+            1.0f);
+        GLES20.glUniform1i(faceFormatUniform, environmentFormat.getShaderId());
+        GLES20.glUniform1i(octahedralUniform, environmentMap.isCubeMap() ? 0 : 1);
+        GLES20.glActiveTexture(
+            environmentMap.isCubeMap() ? GLES20.GL_TEXTURE1 : GLES20.GL_TEXTURE2);
+        GLES20.glBindTexture(environmentMap.getTarget(), environmentMap.getTextureId());
+      } else {
+        GLES20.glUniform2f(environmentParametersUniform, 0.0f, 0.0f);
+      }
+      // Samplers of different types must not share a unit, even when unused
+      GLES20.glUniform1i(environmentMapUniform, 1);
+      GLES20.glUniform1i(octahedralMapUniform, 2);
+    }
+
     // Set the object material properties.
     GLES20.glUniform4f(materialParametersUniform, ambient, diffuse, specular, specularPower);
 
@@ -366,6 +508,12 @@ public class ObjectRenderer {
     GLES20.glDisableVertexAttribArray(texCoordAttribute);
 
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    if (lightingMode == LightingMode.Environment && environmentMap != null) {
+      GLES20.glActiveTexture(
+          environmentMap.isCubeMap() ? GLES20.GL_TEXTURE1 : GLES20.GL_TEXTURE2);
+      GLES20.glBindTexture(environmentMap.getTarget(), 0);
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    }
 
     ShaderUtil.checkGLError(TAG, "After draw");
   }
@@ -0,0 +1,126 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+
+import com.google.ar.core.examples.java.common.rendering.TraceRecorder.Stage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Locale;
+
+/**
+ * Draws the p50, p95 and p99 of a few stages from {@link StageTimings} as text and bars over the
+ * scene.
+ *
+ * <p>The overlay is drawn with a Canvas into a bitmap, uploaded into a {@link Texture} and shown
+ * with a {@link QuadRenderer}. It is only redrawn every REFRESH_INTERVAL_NANOS, so most frames
+ * just draw the quad.
+ */
+public class PerfHudRenderer {
+  private static final int WIDTH = 512;
+  private static final int ROW_HEIGHT = 24;
+  private static final int LABEL_WIDTH = 120;
+  private static final int VALUE_WIDTH = 200;
+  private static final float TEXT_SIZE = 18;
+
+  private static final long REFRESH_INTERVAL_NANOS = 500000000L;
+
+  // Duration of a full bar: two frames at 60 Hz.
+  private static final float BAR_MILLIS = 33.3f;
+
+  private final Stage[] stages;
+  private final int height;
+  private final Bitmap bitmap;
+  private final Canvas canvas;
+  private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+  private final Paint barPaint = new Paint();
+  private final IntBuffer pixels;
+  private final Texture texture;
+  private final QuadRenderer quad;
+  private final int[] buckets = new int[StageTimings.BUCKET_COUNT];
+  private long lastRefresh;
+  private boolean refreshed;
+
+  /**
+   * @param quadCoords Corners of the overlay in normalized device coordinates, as for {@link
+   *     QuadRenderer}. The overlay is ROW_HEIGHT pixels per stage plus a header row high and
+   *     WIDTH pixels wide, and is stretched to the quad.
+   * @param stages Stages to show, one row each.
+   */
+  public PerfHudRenderer(float[] quadCoords, Stage... stages) {
+    this.stages = stages;
+    height = (stages.length + 1) * ROW_HEIGHT;
+    bitmap = Bitmap.createBitmap(WIDTH, height, Bitmap.Config.ARGB_8888);
+    canvas = new Canvas(bitmap);
+    textPaint.setColor(Color.WHITE);
+    textPaint.setTextSize(TEXT_SIZE);
+    textPaint.setTypeface(Typeface.MONOSPACE);
+    pixels =
+        ByteBuffer.allocateDirect(WIDTH * height * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    texture = new Texture(WIDTH, height);
+    quad = new QuadRenderer(quadCoords, texture);
+  }
+
+  public void createOnGlThread(Context context) throws IOException {
+    quad.createOnGlThread(context);
+  }
+
+  /** Redraws the overlay if it is due, then draws it. Must be called on the OpenGL thread. */
+  public void draw() {
+    long now = System.nanoTime();
+    if (!refreshed || now - lastRefresh >= REFRESH_INTERVAL_NANOS) {
+      refresh();
+      lastRefresh = now;
+      refreshed = true;
+    }
+    quad.draw();
+  }
+
+  private void refresh() {
+    bitmap.eraseColor(Color.argb(255, 24, 24, 24));
+    float barWidth = WIDTH - LABEL_WIDTH - VALUE_WIDTH;
+    float textOffset = (ROW_HEIGHT + TEXT_SIZE) / 2 - 2;
+    canvas.drawText("stage   p50/p95/p99 ms", 4, textOffset, textPaint);
+
+    for (int row = 0; row < stages.length; row++) {
+      int total = StageTimings.getHistogram(stages[row], buckets);
+      float p50 = StageTimings.getPercentile(buckets, total, 0.5f);
+      float p95 = StageTimings.getPercentile(buckets, total, 0.95f);
+      float p99 = StageTimings.getPercentile(buckets, total, 0.99f);
+
+      float top = (row + 1) * ROW_HEIGHT;
+      canvas.drawText(stages[row].getLabel(), 4, top + textOffset, textPaint);
+      canvas.drawText(
+          String.format(Locale.US, "%5.1f/%5.1f/%5.1f", p50, p95, p99),
+          LABEL_WIDTH,
+          top + textOffset,
+          textPaint);
+
+      // Widest first, so the p95 and p99 tails show past the p50 bar
+      float left = LABEL_WIDTH + VALUE_WIDTH;
+      float bottom = top + ROW_HEIGHT - 4;
+      barPaint.setColor(Color.argb(255, 200, 60, 60));
+      canvas.drawRect(left, top + 4, left + barLength(p99, barWidth), bottom, barPaint);
+      barPaint.setColor(Color.argb(255, 220, 170, 40));
+      canvas.drawRect(left, top + 4, left + barLength(p95, barWidth), bottom, barPaint);
+      barPaint.setColor(Color.argb(255, 60, 180, 80));
+      canvas.drawRect(left, top + 4, left + barLength(p50, barWidth), bottom, barPaint);
+    }
+
+    pixels.position(0);
+    bitmap.copyPixelsToBuffer(pixels);
+    pixels.position(0);
+    texture.load(pixels);
+  }
+
+  private static float barLength(float millis, float barWidth) {
+    return Math.min(1, millis / BAR_MILLIS) * barWidth;
+  }
+}
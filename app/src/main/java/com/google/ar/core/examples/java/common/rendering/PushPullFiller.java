@@ -0,0 +1,435 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+/**
+ * Fills unobserved environment texels by push-pull interpolation over a mip pyramid per face.
+ *
+ * <p>The pull pass averages the observed texels upwards, level by level, keeping the fraction of
+ * observed texels under every node as its coverage. At the 1x1 top the faces are blended with
+ * their four neighbours. The push pass then goes back down, blending each node's own color with
+ * a fill color by coverage, and writes the result into every unobserved texel. The fill color is
+ * the parent's filled color, and for a node on a face edge also the pulled colors of the nodes
+ * just across the seam, weighted by their coverage. So observed texels on one face extend into
+ * the next one at every level, not only as the average color of the whole face.
+ *
+ * <p>Work is incremental: only pyramid nodes above changed texels are pulled again, and only
+ * subtrees whose filled color changed and that still have unobserved texels are pushed again. A
+ * pass can also be spread across several calls with a time budget.
+ */
+public class PushPullFiller {
+  private static final int STAGE_PULL = 0;
+  private static final int STAGE_SEAMS = 1;
+  private static final int STAGE_PUSH = 2;
+  private static final int STAGE_IDLE = 3;
+
+  // Nodes processed between two reads of the clock.
+  private static final int BUDGET_CHECK_INTERVAL = 64;
+
+  // Color differences below this are not worth propagating.
+  private static final float EPSILON = 1.0f / 1024;
+
+  // Node edges, in the order of the seam tables.
+  private static final int EDGE_LEFT = 0;
+  private static final int EDGE_RIGHT = 1;
+  private static final int EDGE_TOP = 2;
+  private static final int EDGE_BOTTOM = 3;
+
+  private final int faceCount;
+  private final int size;
+  private final int levels;
+  private final int[][] faces;
+  private final DirtyTiles dirtyTiles;
+
+  // [level][face][node * 4]: average color of the observed texels below the node and the
+  // fraction of texels below it that are observed.
+  private final float[][][] pulled;
+  // [level][face][node * 3]: filled color of the node.
+  private final float[][][] pushed;
+  private final boolean[][][] pullDirty;
+  private final boolean[][][] pushDirty;
+  // [level][face][edge * side + i]: the node across the seam from the i-th node along an edge,
+  // as face * nodes + node. Below the top level only, null for a single face.
+  private final int[][][] seamNeighbours;
+  private final int[] neighbours = new int[2];
+
+  private int stage = STAGE_IDLE;
+  private int level;
+  private int cursor;
+  private boolean seamsDirty;
+
+  /**
+   * @param faces The face texels the filled colors are written to, packed as 0xAABBGGRR.
+   * @param dirtyTiles Marked for every texel written.
+   */
+  public PushPullFiller(EnvironmentLayout layout, int size, int[][] faces,
+      DirtyTiles dirtyTiles) {
+    assert(Integer.bitCount(size) == 1);
+    this.faceCount = layout.getFaceCount();
+    this.size = size;
+    this.faces = faces;
+    this.dirtyTiles = dirtyTiles;
+    levels = Integer.numberOfTrailingZeros(size) + 1;
+    pulled = new float[levels][faceCount][];
+    pushed = new float[levels][faceCount][];
+    pullDirty = new boolean[levels][faceCount][];
+    pushDirty = new boolean[levels][faceCount][];
+    for (int l = 0; l < levels; l++) {
+      int nodes = (size >> l) * (size >> l);
+      for (int f = 0; f < faceCount; f++) {
+        pulled[l][f] = new float[nodes * 4];
+        pushed[l][f] = new float[nodes * 3];
+        pullDirty[l][f] = new boolean[nodes];
+        pushDirty[l][f] = new boolean[nodes];
+      }
+    }
+    seamNeighbours = buildSeamNeighbours(layout);
+  }
+
+  /**
+   * Finds the node across every face edge at every level below the top, by stepping one node
+   * past the edge in face coordinates and mapping the direction there back to a node. The cube's
+   * face mapping extends past its edges onto the neighbouring faces. A single face, like the
+   * octahedral layout, only maps its own square, so its folded edges are not crossed.
+   */
+  private int[][][] buildSeamNeighbours(EnvironmentLayout layout) {
+    if (faceCount == 1) {
+      return null;
+    }
+    int[][][] tables = new int[levels - 1][faceCount][];
+    float[] dir = new float[3];
+    for (int l = 0; l < levels - 1; l++) {
+      int side = size >> l;
+      float past = 1 + 1.0f / side;
+      for (int f = 0; f < faceCount; f++) {
+        int[] table = new int[4 * side];
+        for (int i = 0; i < side; i++) {
+          // Face coordinate of the i-th node center along the edge
+          float along = (2 * i + 1) / (float) side - 1;
+          layout.getDirection(f, -past, -along, dir);
+          table[EDGE_LEFT * side + i] = layout.getTexel(dir[0], dir[1], dir[2], side);
+          layout.getDirection(f, past, -along, dir);
+          table[EDGE_RIGHT * side + i] = layout.getTexel(dir[0], dir[1], dir[2], side);
+          layout.getDirection(f, along, past, dir);
+          table[EDGE_TOP * side + i] = layout.getTexel(dir[0], dir[1], dir[2], side);
+          layout.getDirection(f, along, -past, dir);
+          table[EDGE_BOTTOM * side + i] = layout.getTexel(dir[0], dir[1], dir[2], side);
+        }
+        tables[l][f] = table;
+      }
+    }
+    return tables;
+  }
+
+  /**
+   * Sets the observed color of a texel, or marks it unobserved.
+   *
+   * @param observed Whether the texel holds a captured color. Unobserved texels get filled.
+   */
+  public void setTexel(int face, int texel, float r, float g, float b, boolean observed) {
+    float[] node = pulled[0][face];
+    int i = texel * 4;
+    node[i] = r;
+    node[i + 1] = g;
+    node[i + 2] = b;
+    node[i + 3] = observed ? 1 : 0;
+    pushDirty[0][face][texel] = true;
+    if (levels > 1) {
+      pullDirty[1][face][parentOf(texel, size)] = true;
+      markSeamNeighboursForPush(0, face, texel);
+    }
+    if (stage == STAGE_IDLE) {
+      stage = STAGE_PULL;
+      level = 1;
+      cursor = 0;
+    }
+  }
+
+  /** Returns true if there is no pending work. */
+  public boolean isIdle() {
+    return stage == STAGE_IDLE;
+  }
+
+  /**
+   * Runs pending pull and push work until it is done or the budget is spent. The budget is
+   * checked every few nodes, so a call may overrun it slightly. Long.MAX_VALUE runs to the end.
+   *
+   * @return true if the filled texels are up to date.
+   */
+  public boolean fill(long budgetNanos) {
+    final long deadline = System.nanoTime() + budgetNanos;
+    int sinceCheck = 0;
+    while (stage != STAGE_IDLE) {
+      if (++sinceCheck == BUDGET_CHECK_INTERVAL) {
+        sinceCheck = 0;
+        if (System.nanoTime() - deadline > 0) {
+          return false;
+        }
+      }
+      switch (stage) {
+        case STAGE_PULL:
+          stepPull();
+          break;
+        case STAGE_SEAMS:
+          blendSeams();
+          break;
+        case STAGE_PUSH:
+          stepPush();
+          break;
+        default:
+          throw new IllegalStateException("Invalid stage " + stage);
+      }
+    }
+    return true;
+  }
+
+  /** Pulls the node at the cursor of the current level, then advances the cursor. */
+  private void stepPull() {
+    if (level >= levels) {
+      stage = STAGE_SEAMS;
+      return;
+    }
+    int side = size >> level;
+    int nodes = side * side;
+    if (cursor >= nodes * faceCount) {
+      level++;
+      cursor = 0;
+      return;
+    }
+    int face = cursor / nodes;
+    int node = cursor % nodes;
+    cursor++;
+    if (!pullDirty[level][face][node]) {
+      return;
+    }
+    pullDirty[level][face][node] = false;
+
+    float[] children = pulled[level - 1][face];
+    int childSide = side * 2;
+    int x = node % side, y = node / side;
+    int first = (y * 2 * childSide + x * 2) * 4;
+    float r = 0, g = 0, b = 0, w = 0;
+    for (int c = 0; c < 4; c++) {
+      int i = first + ((c >> 1) * childSide + (c & 1)) * 4;
+      float cw = children[i + 3];
+      r += children[i] * cw;
+      g += children[i + 1] * cw;
+      b += children[i + 2] * cw;
+      w += cw;
+    }
+    if (w > 0) {
+      r /= w;
+      g /= w;
+      b /= w;
+    }
+    w *= 0.25f;
+
+    float[] target = pulled[level][face];
+    int i = node * 4;
+    if (differs(target, i, r, g, b) || Math.abs(target[i + 3] - w) > EPSILON) {
+      target[i] = r;
+      target[i + 1] = g;
+      target[i + 2] = b;
+      target[i + 3] = w;
+      pushDirty[level][face][node] = true;
+      if (level + 1 < levels) {
+        pullDirty[level + 1][face][parentOf(node, side)] = true;
+        markSeamNeighboursForPush(level, face, node);
+      } else {
+        seamsDirty = true;
+      }
+    }
+  }
+
+  /**
+   * Fills the 1x1 top of every face from its own coverage and the four faces sharing an edge
+   * with it. Cube faces come in opposite pairs (2k, 2k + 1), so every other face is a neighbour.
+   * Finer levels cross the seams node by node in the push pass. A single face, like the
+   * octahedral layout, keeps its own top.
+   */
+  private void blendSeams() {
+    int top = levels - 1;
+    if (seamsDirty) {
+      seamsDirty = false;
+      for (int face = 0; face < faceCount; face++) {
+        float nr = 0, ng = 0, nb = 0, nw = 0;
+        for (int other = 0; other < faceCount; other++) {
+          if (other == face || other == (face ^ 1)) {
+            continue;
+          }
+          float[] node = pulled[top][other];
+          nr += node[0] * node[3];
+          ng += node[1] * node[3];
+          nb += node[2] * node[3];
+          nw += node[3];
+        }
+        // With no observed neighbour, the opposite face is the only source left
+        if (nw == 0 && (face ^ 1) < faceCount) {
+          float[] node = pulled[top][face ^ 1];
+          nr = node[0] * node[3];
+          ng = node[1] * node[3];
+          nb = node[2] * node[3];
+          nw = node[3];
+        }
+        float[] own = pulled[top][face];
+        float w = own[3];
+        float r = own[0] * w, g = own[1] * w, b = own[2] * w;
+        if (nw > 0) {
+          r += (1 - w) * nr / nw;
+          g += (1 - w) * ng / nw;
+          b += (1 - w) * nb / nw;
+        }
+        if (differs(pushed[top][face], 0, r, g, b)) {
+          pushed[top][face][0] = r;
+          pushed[top][face][1] = g;
+          pushed[top][face][2] = b;
+          markChildrenForPush(top, face, 0);
+        }
+        pushDirty[top][face][0] = false;
+      }
+    }
+    stage = STAGE_PUSH;
+    level = top - 1;
+    cursor = 0;
+  }
+
+  /** Pushes the node at the cursor of the current level, then advances the cursor. */
+  private void stepPush() {
+    if (level < 0) {
+      stage = STAGE_IDLE;
+      // Texels changed while this pass was running start a new one
+      for (int l = 0; l < levels; l++) {
+        for (int f = 0; f < faceCount; f++) {
+          if (anySet(pullDirty[l][f]) || anySet(pushDirty[l][f])) {
+            stage = STAGE_PULL;
+            level = 1;
+            cursor = 0;
+            return;
+          }
+        }
+      }
+      return;
+    }
+    int side = size >> level;
+    int nodes = side * side;
+    if (cursor >= nodes * faceCount) {
+      level--;
+      cursor = 0;
+      return;
+    }
+    int face = cursor / nodes;
+    int node = cursor % nodes;
+    cursor++;
+    if (!pushDirty[level][face][node]) {
+      return;
+    }
+    pushDirty[level][face][node] = false;
+
+    float[] own = pulled[level][face];
+    float[] parent = pushed[level + 1][face];
+    int i = node * 4;
+    int p = parentOf(node, side) * 3;
+    float w = own[i + 3];
+
+    // Fill from the parent, and on an edge from the observed nodes across the seam
+    float fillR = parent[p], fillG = parent[p + 1], fillB = parent[p + 2], fillW = 1;
+    for (int k = getSeamNeighbours(level, node, face) - 1; k >= 0; k--) {
+      float[] across = pulled[level][neighbours[k] / nodes];
+      int j = neighbours[k] % nodes * 4;
+      float cw = across[j + 3];
+      fillR += across[j] * cw;
+      fillG += across[j + 1] * cw;
+      fillB += across[j + 2] * cw;
+      fillW += cw;
+    }
+    float fill = (1 - w) / fillW;
+    float r = own[i] * w + fillR * fill;
+    float g = own[i + 1] * w + fillG * fill;
+    float b = own[i + 2] * w + fillB * fill;
+
+    float[] target = pushed[level][face];
+    int t = node * 3;
+    if (!differs(target, t, r, g, b)) {
+      return;
+    }
+    target[t] = r;
+    target[t + 1] = g;
+    target[t + 2] = b;
+    if (level > 0) {
+      markChildrenForPush(level, face, node);
+    } else if (w == 0) {
+      int rgba = RadianceAccumulator.encode(r, g, b);
+      if (faces[face][node] != rgba) {
+        faces[face][node] = rgba;
+        dirtyTiles.markTexel(face, node % size, node / size);
+      }
+    }
+  }
+
+  /** Marks the children of a node for push, skipping fully observed ones that ignore it. */
+  private void markChildrenForPush(int level, int face, int node) {
+    int side = size >> level;
+    int childSide = side * 2;
+    int x = node % side, y = node / side;
+    float[] children = pulled[level - 1][face];
+    for (int c = 0; c < 4; c++) {
+      int child = (y * 2 + (c >> 1)) * childSide + x * 2 + (c & 1);
+      if (children[child * 4 + 3] < 1) {
+        pushDirty[level - 1][face][child] = true;
+      }
+    }
+  }
+
+  /**
+   * Writes the nodes across the seams from a node into {@link #neighbours}, two at a corner, one
+   * elsewhere on an edge.
+   *
+   * @return the number of neighbours written.
+   */
+  private int getSeamNeighbours(int level, int node, int face) {
+    if (seamNeighbours == null) {
+      return 0;
+    }
+    int side = size >> level;
+    int[] table = seamNeighbours[level][face];
+    int x = node % side, y = node / side;
+    int count = 0;
+    if (x == 0) {
+      neighbours[count++] = table[EDGE_LEFT * side + y];
+    } else if (x == side - 1) {
+      neighbours[count++] = table[EDGE_RIGHT * side + y];
+    }
+    if (y == 0) {
+      neighbours[count++] = table[EDGE_TOP * side + x];
+    } else if (y == side - 1) {
+      neighbours[count++] = table[EDGE_BOTTOM * side + x];
+    }
+    return count;
+  }
+
+  /** Marks the nodes across the seams from a node for push, as they fill from its color. */
+  private void markSeamNeighboursForPush(int level, int face, int node) {
+    int nodes = (size >> level) * (size >> level);
+    for (int k = getSeamNeighbours(level, node, face) - 1; k >= 0; k--) {
+      pushDirty[level][neighbours[k] / nodes][neighbours[k] % nodes] = true;
+    }
+  }
+
+  private static int parentOf(int node, int side) {
+    int x = node % side, y = node / side;
+    return (y / 2) * (side / 2) + x / 2;
+  }
+
+  private static boolean differs(float[] values, int i, float r, float g, float b) {
+    return Math.abs(values[i] - r) > EPSILON
+        || Math.abs(values[i + 1] - g) > EPSILON
+        || Math.abs(values[i + 2] - b) > EPSILON;
+  }
+
+  private static boolean anySet(boolean[] flags) {
+    for (boolean flag : flags) {
+      if (flag) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
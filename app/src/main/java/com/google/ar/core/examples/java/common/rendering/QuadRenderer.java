@@ -15,8 +15,6 @@ import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 
 public class QuadRenderer {
-  private static final int TEXTURE_WIDTH = 128;
-  private static final int TEXTURE_HEIGHT = 128;
   private Texture texture;
 
   private static final String TAG = BackgroundRenderer.class.getSimpleName();
@@ -36,7 +34,9 @@ public class QuadRenderer {
 
   private int quadPositionParam;
   private int quadTexCoordParam;
+  private int faceFormatParam;
   private float[] quadCoords;
+  private FaceFormat faceFormat = FaceFormat.RGBA8888;
 
   private static final float[] QUAD_COORDS =
           new float[] {
@@ -62,18 +62,20 @@ public class QuadRenderer {
     this.texture = new Texture(width, height);
   }
 
-  public QuadRenderer(float[] quadCoords) {
-    this(quadCoords, TEXTURE_WIDTH, TEXTURE_HEIGHT);
-  }
-
-  public QuadRenderer() {
-    this(QUAD_COORDS);
+  /** Creates a full-screen quad showing a width * height texture. */
+  public QuadRenderer(int width, int height) {
+    this(QUAD_COORDS, width, height);
   }
 
   public int getTextureId() {
     return texture.getTextureId();
   }
 
+  /** Sets how the texels are decoded for display, RGBA8888 by default. */
+  public void setFaceFormat(FaceFormat faceFormat) {
+    this.faceFormat = faceFormat;
+  }
+
   public void createOnGlThread(Context context) throws IOException {
     this.texture.createOnGlThread(context);
 
@@ -110,6 +112,7 @@ public class QuadRenderer {
 
     quadPositionParam = GLES20.glGetAttribLocation(quadProgram, "a_Position");
     quadTexCoordParam = GLES20.glGetAttribLocation(quadProgram, "a_TexCoord");
+    faceFormatParam = GLES20.glGetUniformLocation(quadProgram, "u_FaceFormat");
 
     ShaderUtil.checkGLError(TAG, "Program parameters");
   }
@@ -124,6 +127,7 @@ public class QuadRenderer {
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, this.getTextureId());
 
     GLES20.glUseProgram(quadProgram);
+    GLES20.glUniform1i(faceFormatParam, faceFormat.getShaderId());
 
     // Set the vertex positions.
     GLES20.glVertexAttribPointer(
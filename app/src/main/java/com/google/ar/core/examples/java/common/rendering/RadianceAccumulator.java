@@ -0,0 +1,130 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.util.Arrays;
+
+/**
+ * Per-texel running average of linear radiance for the environment faces.
+ *
+ * <p>Each texel keeps a linear RGB value and a weight. A new sample is blended in with weight
+ * 1 / w, where w = w * decay + 1, so the first samples form a plain average and later samples
+ * settle into an exponential moving average with a time constant of 1 / (1 - decay) samples.
+ * Unobserved texels keep weight 0.
+ */
+public class RadianceAccumulator {
+  private static final int CHANNELS = 4;
+  private static final int ENCODE_TABLE_SIZE = 4096;
+
+  // sRGB byte to linear value, and linear value (quantized to ENCODE_TABLE_SIZE steps) back to
+  // an sRGB byte. Both use the same approximate 2.2 gamma as the object shader.
+  private static final float[] DECODE = new float[256];
+  private static final byte[] ENCODE = new byte[ENCODE_TABLE_SIZE];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      DECODE[i] = (float) Math.pow(i / 255.0, 2.2);
+    }
+    for (int i = 0; i < ENCODE_TABLE_SIZE; i++) {
+      double linear = i / (double) (ENCODE_TABLE_SIZE - 1);
+      ENCODE[i] = (byte) Math.round(255.0 * Math.pow(linear, 1 / 2.2));
+    }
+  }
+
+  private final int texelsPerFace;
+  // {r, g, b, weight} per texel, faces in the same order as AREnvironment.
+  private final float[][] texels;
+  private float decay;
+
+  public RadianceAccumulator(int faceCount, int texelsPerFace, float decay) {
+    this.texelsPerFace = texelsPerFace;
+    texels = new float[faceCount][texelsPerFace * CHANNELS];
+    setDecay(decay);
+  }
+
+  /**
+   * Sets how much of the accumulated weight survives each new sample, in [0, 1). 0 makes every
+   * sample replace the texel.
+   */
+  public void setDecay(float decay) {
+    assert(decay >= 0 && decay < 1);
+    this.decay = decay;
+  }
+
+  public float getDecay() {
+    return decay;
+  }
+
+  public int getTexelsPerFace() {
+    return texelsPerFace;
+  }
+
+  /**
+   * Blends a sample into a texel.
+   *
+   * @param rgba Sample color packed as 0xAABBGGRR, like the faces.
+   * @return the new texel color, packed the same way.
+   */
+  public int add(int face, int texel, int rgba) {
+    float[] data = texels[face];
+    int i = texel * CHANNELS;
+    float weight = data[i + 3] * decay + 1;
+    float alpha = 1 / weight;
+    data[i] += (DECODE[rgba & 0xff] - data[i]) * alpha;
+    data[i + 1] += (DECODE[(rgba >> 8) & 0xff] - data[i + 1]) * alpha;
+    data[i + 2] += (DECODE[(rgba >> 16) & 0xff] - data[i + 2]) * alpha;
+    data[i + 3] = weight;
+    return encode(data[i], data[i + 1], data[i + 2]);
+  }
+
+  /** Replaces the linear color and the weight of a texel, e.g. when restoring a saved state. */
+  public void set(int face, int texel, float r, float g, float b, float weight) {
+    float[] data = texels[face];
+    int i = texel * CHANNELS;
+    data[i] = r;
+    data[i + 1] = g;
+    data[i + 2] = b;
+    data[i + 3] = weight;
+  }
+
+  /** Returns the accumulated weight of a texel, 0 if it was never observed. */
+  public float getWeight(int face, int texel) {
+    return texels[face][texel * CHANNELS + 3];
+  }
+
+  /** Writes the linear {r, g, b} of a texel into {@code out}. */
+  public void getRadiance(int face, int texel, float[] out) {
+    float[] data = texels[face];
+    int i = texel * CHANNELS;
+    out[0] = data[i];
+    out[1] = data[i + 1];
+    out[2] = data[i + 2];
+  }
+
+  /** Returns the raw {r, g, b, weight} array of a face. */
+  public float[] getFace(int face) {
+    return texels[face];
+  }
+
+  public void clear() {
+    for (float[] face : texels) {
+      Arrays.fill(face, 0);
+    }
+  }
+
+  /** Packs a linear color as an opaque 0xAABBGGRR sRGB texel, clamping to [0, 1]. */
+  public static int encode(float r, float g, float b) {
+    return 0xff000000
+        | (ENCODE[quantize(b)] & 0xff) << 16
+        | (ENCODE[quantize(g)] & 0xff) << 8
+        | (ENCODE[quantize(r)] & 0xff);
+  }
+
+  /** Returns the linear value of one sRGB channel byte. */
+  public static float decode(int channel) {
+    return DECODE[channel & 0xff];
+  }
+
+  private static int quantize(float value) {
+    int index = (int) (value * (ENCODE_TABLE_SIZE - 1) + 0.5f);
+    return index < 0 ? 0 : (index >= ENCODE_TABLE_SIZE ? ENCODE_TABLE_SIZE - 1 : index);
+  }
+}
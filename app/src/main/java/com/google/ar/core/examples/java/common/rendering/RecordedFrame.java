@@ -0,0 +1,129 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Everything the app reads from one AR frame, as plain data: the camera image and matrices, the
+ * light estimate, the point cloud and the tracked planes. Written and read by {@link FrameLog},
+ * so a recorded session can be replayed without ARCore. All buffers are reused between frames
+ * and only grow.
+ */
+public class RecordedFrame {
+  /** Floats per point of the point cloud: x, y, z and confidence. */
+  public static final int FLOATS_PER_POINT = 4;
+
+  private final CameraFrame camera = new CameraFrame();
+  private final float[] colorCorrection = new float[4];
+  private float pixelIntensity;
+
+  private FloatBuffer points = allocateFloats(0);
+
+  // Per plane: the center pose matrix, the extents and where its polygon starts in polygons.
+  private int planeCount;
+  private float[] planeMatrices = new float[0];
+  private float[] planeExtents = new float[0];
+  private int[] polygonOffsets = new int[1];
+  private FloatBuffer polygons = allocateFloats(0);
+
+  /** Returns the camera image and matrices. */
+  public CameraFrame getCamera() {
+    return camera;
+  }
+
+  /** Returns the color correction of the light estimate, see LightEstimate#getColorCorrection. */
+  public float[] getColorCorrection() {
+    return colorCorrection;
+  }
+
+  public float getPixelIntensity() {
+    return pixelIntensity;
+  }
+
+  public void setLightEstimate(float[] colorCorrection, float pixelIntensity) {
+    System.arraycopy(colorCorrection, 0, this.colorCorrection, 0, 4);
+    this.pixelIntensity = pixelIntensity;
+  }
+
+  /**
+   * Returns the point cloud, {@link #FLOATS_PER_POINT} floats per point, positioned at zero with
+   * its limit at the end of the points.
+   */
+  public FloatBuffer getPoints() {
+    return points;
+  }
+
+  /** Copies the remaining floats of {@code source} into the point cloud. */
+  public void setPoints(FloatBuffer source) {
+    if (points.capacity() < source.remaining()) {
+      points = allocateFloats(source.remaining());
+    }
+    points.clear();
+    points.put(source);
+    points.flip();
+  }
+
+  public int getPlaneCount() {
+    return planeCount;
+  }
+
+  /** Returns the center pose of every plane as a 4x4 column-major matrix, 16 floats per plane. */
+  public float[] getPlaneMatrices() {
+    return planeMatrices;
+  }
+
+  public float getPlaneExtentX(int plane) {
+    return planeExtents[plane * 2];
+  }
+
+  public float getPlaneExtentZ(int plane) {
+    return planeExtents[plane * 2 + 1];
+  }
+
+  /**
+   * Returns the boundary polygon of a plane, x and z pairs in the plane's frame, as a new buffer
+   * sharing the stored floats.
+   */
+  public FloatBuffer getPlanePolygon(int plane) {
+    FloatBuffer polygon = polygons.duplicate();
+    polygon.limit(polygonOffsets[plane + 1]);
+    polygon.position(polygonOffsets[plane]);
+    return polygon.slice();
+  }
+
+  /** Drops the planes, before they are added again with {@link #addPlane}. */
+  public void clearPlanes() {
+    planeCount = 0;
+    polygons.clear();
+  }
+
+  /** Appends a plane, copying the remaining floats of {@code polygon}. */
+  public void addPlane(float[] matrix, float extentX, float extentZ, FloatBuffer polygon) {
+    if (planeMatrices.length < (planeCount + 1) * 16) {
+      int capacity = Math.max(4, planeCount * 2);
+      planeMatrices = Arrays.copyOf(planeMatrices, capacity * 16);
+      planeExtents = Arrays.copyOf(planeExtents, capacity * 2);
+      polygonOffsets = Arrays.copyOf(polygonOffsets, capacity + 1);
+    }
+    System.arraycopy(matrix, 0, planeMatrices, planeCount * 16, 16);
+    planeExtents[planeCount * 2] = extentX;
+    planeExtents[planeCount * 2 + 1] = extentZ;
+
+    int end = polygons.position() + polygon.remaining();
+    if (polygons.capacity() < end) {
+      FloatBuffer grown = allocateFloats(Math.max(end, polygons.capacity() * 2));
+      polygons.flip();
+      grown.put(polygons);
+      polygons = grown;
+    }
+    polygons.put(polygon);
+    planeCount++;
+    polygonOffsets[planeCount] = polygons.position();
+  }
+
+  private static FloatBuffer allocateFloats(int count) {
+    return ByteBuffer.allocateDirect(count * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+  }
+}
@@ -0,0 +1,150 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.util.Arrays;
+
+/**
+ * Chooses how densely each region of the camera image is sampled, from how confident the
+ * environment already is about the texels the region projects to.
+ *
+ * <p>The image is covered by a grid of sample cells, and the cells are grouped into square
+ * regions of REGION_CELLS * REGION_CELLS. A region is sampled every stride cells in both
+ * directions: densely where the texels are new, sparsely where they are well covered, and not at
+ * all where they are saturated. Saturated regions are still revisited every REFRESH_INTERVAL
+ * updates, in turn, so that changes in the scene are picked up. If the strides add up to more
+ * than the sample budget, the densest regions are coarsened until they fit.
+ */
+class SamplingPlan {
+  static final int REGION_CELLS = 12;
+
+  // Strides a region can get, densest first. Each divides REGION_CELLS, so every region starts
+  // on a sample of every stride.
+  private static final int[] STRIDES = {1, 2, 3, 4, 6, 12};
+  private static final int SKIPPED = -1;
+
+  // Confidence thresholds, in the [0, 1] range returned by the environment.
+  private static final float LOW_CONFIDENCE = 0.25f;
+  private static final float MEDIUM_CONFIDENCE = 0.6f;
+  private static final float SATURATED_CONFIDENCE = 0.95f;
+
+  private static final int REFRESH_INTERVAL = 8;
+
+  private int cellColumns;
+  private int cellRows;
+  private int regionColumns;
+  private int regionRows;
+
+  // Per region: lowest confidence of its probes, and index into STRIDES or SKIPPED.
+  private float[] confidences = new float[0];
+  private int[] strideIndices = new int[0];
+
+  private int sampleCount;
+  private int updateCount;
+
+  /** Sets the size of the cell grid, keeping the plan if it did not change. */
+  void setCellGrid(int cellColumns, int cellRows) {
+    if (cellColumns == this.cellColumns && cellRows == this.cellRows) {
+      return;
+    }
+    this.cellColumns = cellColumns;
+    this.cellRows = cellRows;
+    regionColumns = (cellColumns + REGION_CELLS - 1) / REGION_CELLS;
+    regionRows = (cellRows + REGION_CELLS - 1) / REGION_CELLS;
+    confidences = new float[regionColumns * regionRows];
+    strideIndices = new int[regionColumns * regionRows];
+  }
+
+  int getRegionColumns() {
+    return regionColumns;
+  }
+
+  int getRegionRows() {
+    return regionRows;
+  }
+
+  /** Returns the confidences to fill before {@link #plan(int)}, one per region, row-major. */
+  float[] getConfidences() {
+    return confidences;
+  }
+
+  /** Returns the stride of a region in cells, or 0 if the region is skipped. */
+  int getStride(int region) {
+    int index = strideIndices[region];
+    return index == SKIPPED ? 0 : STRIDES[index];
+  }
+
+  /** Returns the number of samples the last plan asked for. */
+  int getSampleCount() {
+    return sampleCount;
+  }
+
+  /** Picks the stride of every region from its confidence, then fits them into the budget. */
+  void plan(int sampleBudget) {
+    int regions = strideIndices.length;
+    for (int region = 0; region < regions; region++) {
+      float confidence = confidences[region];
+      if (confidence < LOW_CONFIDENCE) {
+        strideIndices[region] = 0;
+      } else if (confidence < MEDIUM_CONFIDENCE) {
+        strideIndices[region] = 2;
+      } else if (confidence < SATURATED_CONFIDENCE) {
+        strideIndices[region] = 4;
+      } else if ((region + updateCount) % REFRESH_INTERVAL == 0) {
+        strideIndices[region] = STRIDES.length - 1;
+      } else {
+        strideIndices[region] = SKIPPED;
+      }
+    }
+    updateCount++;
+
+    // Coarsen the densest regions a step at a time
+    sampleCount = countSamples();
+    for (int step = 0; step < STRIDES.length - 1 && sampleCount > sampleBudget; step++) {
+      for (int region = 0; region < regions; region++) {
+        if (strideIndices[region] == step) {
+          strideIndices[region] = step + 1;
+        }
+      }
+      sampleCount = countSamples();
+    }
+
+    // Still over with everything at the coarsest stride, drop the most confident regions
+    while (sampleCount > sampleBudget) {
+      int mostConfident = -1;
+      for (int region = 0; region < regions; region++) {
+        if (strideIndices[region] != SKIPPED
+            && (mostConfident < 0 || confidences[region] > confidences[mostConfident])) {
+          mostConfident = region;
+        }
+      }
+      if (mostConfident < 0) {
+        break;
+      }
+      strideIndices[mostConfident] = SKIPPED;
+      sampleCount = countSamples();
+    }
+  }
+
+  /** Marks every region at the given stride, for callers that do not want adaptive sampling. */
+  void planUniform(int stride) {
+    int index = Arrays.binarySearch(STRIDES, stride);
+    assert(index >= 0);
+    Arrays.fill(strideIndices, index);
+    sampleCount = countSamples();
+  }
+
+  private int countSamples() {
+    int count = 0;
+    for (int regionRow = 0, region = 0; regionRow < regionRows; regionRow++) {
+      int height = Math.min(REGION_CELLS, cellRows - regionRow * REGION_CELLS);
+      for (int regionColumn = 0; regionColumn < regionColumns; regionColumn++, region++) {
+        if (strideIndices[region] == SKIPPED) {
+          continue;
+        }
+        int width = Math.min(REGION_CELLS, cellColumns - regionColumn * REGION_CELLS);
+        int stride = STRIDES[strideIndices[region]];
+        count += ((width + stride - 1) / stride) * ((height + stride - 1) / stride);
+      }
+    }
+    return count;
+  }
+}
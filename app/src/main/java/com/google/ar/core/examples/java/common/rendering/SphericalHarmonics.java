@@ -0,0 +1,117 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.util.Arrays;
+
+/**
+ * Order 2 (9 coefficient) spherical harmonics projection of RGB radiance, updated one
+ * contribution at a time.
+ *
+ * <p>The projection is linear, so a texel whose radiance changes from L to L' only has to add
+ * (L' - L) * Y(dir) * solidAngle. That keeps the coefficients equal to the projection of the
+ * current environment at O(1) cost per texel update.
+ */
+public class SphericalHarmonics {
+  public static final int NUM_COEFFICIENTS = 9;
+
+  // Real SH basis normalization constants.
+  private static final float Y0 = 0.282095f;
+  private static final float Y1 = 0.488603f;
+  private static final float Y2 = 1.092548f;
+  private static final float Y20 = 0.315392f;
+  private static final float Y22 = 0.546274f;
+
+  // Cosine lobe convolution per band, see Ramamoorthi and Hanrahan, "An Efficient
+  // Representation for Irradiance Environment Maps".
+  private static final float A0 = (float) Math.PI;
+  private static final float A1 = (float) (2 * Math.PI / 3);
+  private static final float A2 = (float) (Math.PI / 4);
+
+  // {r, g, b} per coefficient.
+  private final float[] coefficients = new float[NUM_COEFFICIENTS * 3];
+
+  /**
+   * Adds radiance (r, g, b) arriving from the unit direction (x, y, z), weighted by the solid
+   * angle it covers. Negative values remove an earlier contribution.
+   */
+  public void add(float x, float y, float z, float r, float g, float b, float solidAngle) {
+    float[] c = coefficients;
+    r *= solidAngle;
+    g *= solidAngle;
+    b *= solidAngle;
+    accumulate(c, 0, Y0, r, g, b);
+    accumulate(c, 1, Y1 * y, r, g, b);
+    accumulate(c, 2, Y1 * z, r, g, b);
+    accumulate(c, 3, Y1 * x, r, g, b);
+    accumulate(c, 4, Y2 * x * y, r, g, b);
+    accumulate(c, 5, Y2 * y * z, r, g, b);
+    accumulate(c, 6, Y20 * (3 * z * z - 1), r, g, b);
+    accumulate(c, 7, Y2 * x * z, r, g, b);
+    accumulate(c, 8, Y22 * (x * x - y * y), r, g, b);
+  }
+
+  /** Returns the raw radiance coefficients, {r, g, b} per coefficient. */
+  public float[] getCoefficients() {
+    return coefficients;
+  }
+
+  /**
+   * Writes 9 RGB irradiance coefficients, with the cosine convolution and the basis constants
+   * folded in, so that irradiance for a unit normal n is
+   *
+   * <pre>
+   *   c0 + c1 n.y + c2 n.z + c3 n.x + c4 n.x n.y + c5 n.y n.z
+   *      + c6 (3 n.z^2 - 1) + c7 n.x n.z + c8 (n.x^2 - n.y^2)
+   * </pre>
+   *
+   * which is what the spherical harmonics object shader evaluates.
+   */
+  public void getIrradianceCoefficients(float[] out) {
+    for (int i = 0; i < NUM_COEFFICIENTS; i++) {
+      float scale = bandScale(i);
+      out[i * 3] = coefficients[i * 3] * scale;
+      out[i * 3 + 1] = coefficients[i * 3 + 1] * scale;
+      out[i * 3 + 2] = coefficients[i * 3 + 2] * scale;
+    }
+  }
+
+  public void clear() {
+    Arrays.fill(coefficients, 0);
+  }
+
+  /**
+   * Returns the solid angle covered by the texel (x, y) of a size * size cube face, see
+   * "Cubemap Texel Solid Angle" by Driscoll.
+   */
+  public static float texelSolidAngle(int x, int y, int size) {
+    float x0 = 2.0f * x / size - 1, x1 = 2.0f * (x + 1) / size - 1;
+    float y0 = 2.0f * y / size - 1, y1 = 2.0f * (y + 1) / size - 1;
+    return areaElement(x0, y0) - areaElement(x0, y1) - areaElement(x1, y0) + areaElement(x1, y1);
+  }
+
+  private static float areaElement(float x, float y) {
+    return (float) Math.atan2(x * y, Math.sqrt(x * x + y * y + 1));
+  }
+
+  private static float bandScale(int coefficient) {
+    switch (coefficient) {
+      case 0:
+        return A0 * Y0;
+      case 1: case 2: case 3:
+        return A1 * Y1;
+      case 4: case 5: case 7:
+        return A2 * Y2;
+      case 6:
+        return A2 * Y20;
+      case 8:
+        return A2 * Y22;
+      default:
+        throw new Error("Invalid coefficient " + coefficient);
+    }
+  }
+
+  private static void accumulate(float[] c, int i, float basis, float r, float g, float b) {
+    c[i * 3] += basis * r;
+    c[i * 3 + 1] += basis * g;
+    c[i * 3 + 2] += basis * b;
+  }
+}
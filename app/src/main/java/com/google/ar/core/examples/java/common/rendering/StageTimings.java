@@ -0,0 +1,213 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import com.google.ar.core.examples.java.common.rendering.TraceRecorder.Stage;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms of the rendering and capture stages over a sliding window. Call sites time
+ * their stages through {@link #record}, guarded by {@link #ENABLED}, a compile-time constant:
+ *
+ * <pre>
+ * long traceStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+ * ...
+ * if (StageTimings.ENABLED) {
+ *   StageTimings.record(TraceRecorder.Stage.UPDATE, traceStart);
+ * }
+ * </pre>
+ *
+ * <p>The histograms work on their own, for the performance overlay and the CSV exports. When
+ * {@link TraceRecorder#ENABLED} is set too, every record also goes into the trace.
+ *
+ * <p>Buckets are log-linear: each power of two above about a microsecond is split into
+ * SUB_BUCKETS equal buckets, so a percentile is off by at most 1 / SUB_BUCKETS of its value. The
+ * window is made of WINDOW_COUNT slices of WINDOW_NANOS, and the oldest slice is cleared by
+ * whichever thread first records into a new one. Counters are atomic, so any thread may record
+ * without locking; a record racing with the clear of its slice may be lost, which the
+ * percentiles do not notice.
+ */
+public final class StageTimings {
+  /**
+   * Whether call sites time their stages at all. A record costs a clock read and an atomic
+   * increment, cheap enough to leave on.
+   */
+  public static final boolean ENABLED = true;
+
+  // Durations are bucketed in units of 1024 ns, about a microsecond.
+  private static final int UNIT_SHIFT = 10;
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  // Highest power of two of units that gets its own buckets, about 16 s. Longer durations land
+  // in the last bucket.
+  private static final int MAX_OCTAVE = 23;
+
+  /** Number of buckets of a histogram. */
+  public static final int BUCKET_COUNT = (MAX_OCTAVE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+  private static final int WINDOW_COUNT = 4;
+  private static final long WINDOW_NANOS = 500000000L;
+
+  private static final int STAGE_COUNT = Stage.values().length;
+  private static final long ORIGIN = System.nanoTime();
+
+  // counts[(window * STAGE_COUNT + stage) * BUCKET_COUNT + bucket], and the slice each window
+  // currently holds.
+  private static final AtomicIntegerArray counts =
+      new AtomicIntegerArray(WINDOW_COUNT * STAGE_COUNT * BUCKET_COUNT);
+  private static final AtomicLongArray windowSlices = new AtomicLongArray(WINDOW_COUNT);
+
+  private StageTimings() {}
+
+  /** Records a stage that started at {@code startNanos}, from {@link System#nanoTime()}. */
+  public static void record(Stage stage, long startNanos) {
+    record(stage, startNanos, TraceRecorder.NO_VALUE);
+  }
+
+  /**
+   * Records a stage that started at {@code startNanos} together with a value it counted. The
+   * value only shows up in the trace.
+   */
+  public static void record(Stage stage, long startNanos, long value) {
+    long end = System.nanoTime();
+    add(stage, end - startNanos, end);
+    if (TraceRecorder.ENABLED) {
+      TraceRecorder.record(stage, startNanos, end, value);
+    }
+  }
+
+  /** Adds one duration of a stage that ended at {@code endNanos}, from System.nanoTime(). */
+  public static void add(Stage stage, long durationNanos, long endNanos) {
+    long slice = (endNanos - ORIGIN) / WINDOW_NANOS;
+    int window = (int) (slice % WINDOW_COUNT);
+    long held = windowSlices.get(window);
+    if (held != slice) {
+      if (held > slice) {
+        // Another thread already moved this window past us
+        return;
+      }
+      if (windowSlices.compareAndSet(window, held, slice)) {
+        int begin = window * STAGE_COUNT * BUCKET_COUNT;
+        for (int i = begin; i < begin + STAGE_COUNT * BUCKET_COUNT; i++) {
+          counts.set(i, 0);
+        }
+      }
+    }
+    counts.incrementAndGet(
+        (window * STAGE_COUNT + stage.ordinal()) * BUCKET_COUNT + getBucket(durationNanos));
+  }
+
+  /**
+   * Sums the histogram of a stage over the current window into {@code buckets}, which must hold
+   * BUCKET_COUNT entries.
+   *
+   * @return the number of durations in the window.
+   */
+  public static int getHistogram(Stage stage, int[] buckets) {
+    long current = (System.nanoTime() - ORIGIN) / WINDOW_NANOS;
+    for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+      buckets[bucket] = 0;
+    }
+    int total = 0;
+    for (int window = 0; window < WINDOW_COUNT; window++) {
+      if (current - windowSlices.get(window) >= WINDOW_COUNT) {
+        continue;
+      }
+      int begin = (window * STAGE_COUNT + stage.ordinal()) * BUCKET_COUNT;
+      for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+        int count = counts.get(begin + bucket);
+        buckets[bucket] += count;
+        total += count;
+      }
+    }
+    return total;
+  }
+
+  /**
+   * Returns the duration in milliseconds below which the given fraction of a histogram falls,
+   * rounded up to its bucket, or 0 if the histogram is empty.
+   */
+  public static float getPercentile(int[] buckets, int total, float fraction) {
+    if (total == 0) {
+      return 0;
+    }
+    int rank = Math.max(1, (int) Math.ceil(fraction * total));
+    int seen = 0;
+    for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+      seen += buckets[bucket];
+      if (seen >= rank) {
+        return getBucketUpperMillis(bucket);
+      }
+    }
+    return getBucketUpperMillis(BUCKET_COUNT - 1);
+  }
+
+  /** Returns the upper bound of a bucket, in milliseconds. */
+  public static float getBucketUpperMillis(int bucket) {
+    long upperUnits;
+    if (bucket < SUB_BUCKETS) {
+      upperUnits = bucket + 1;
+    } else {
+      int shift = bucket / SUB_BUCKETS - 1;
+      upperUnits = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << shift;
+    }
+    return (upperUnits << UNIT_SHIFT) * 1e-6f;
+  }
+
+  /** Writes the count and p50, p95 and p99 in milliseconds of every stage as CSV. */
+  public static void writeSummaryCsv(Writer writer) throws IOException {
+    int[] buckets = new int[BUCKET_COUNT];
+    writer.write("stage,count,p50_ms,p95_ms,p99_ms\n");
+    for (Stage stage : Stage.values()) {
+      int total = getHistogram(stage, buckets);
+      writer.write(
+          String.format(
+              Locale.US,
+              "%s,%d,%.3f,%.3f,%.3f\n",
+              stage.getLabel(),
+              total,
+              getPercentile(buckets, total, 0.5f),
+              getPercentile(buckets, total, 0.95f),
+              getPercentile(buckets, total, 0.99f)));
+    }
+    writer.flush();
+  }
+
+  /** Writes the non-empty buckets of every stage as CSV, one row per bucket. */
+  public static void writeHistogramCsv(Writer writer) throws IOException {
+    int[] buckets = new int[BUCKET_COUNT];
+    writer.write("stage,upper_ms,count\n");
+    for (Stage stage : Stage.values()) {
+      getHistogram(stage, buckets);
+      for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+        if (buckets[bucket] != 0) {
+          writer.write(
+              String.format(
+                  Locale.US,
+                  "%s,%.3f,%d\n",
+                  stage.getLabel(),
+                  getBucketUpperMillis(bucket),
+                  buckets[bucket]));
+        }
+      }
+    }
+    writer.flush();
+  }
+
+  private static int getBucket(long nanos) {
+    long units = Math.max(0, nanos) >> UNIT_SHIFT;
+    if (units < SUB_BUCKETS) {
+      return (int) units;
+    }
+    int octave = 63 - Long.numberOfLeadingZeros(units);
+    if (octave > MAX_OCTAVE) {
+      return BUCKET_COUNT - 1;
+    }
+    int subBucket = (int) (units >> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (octave - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+}
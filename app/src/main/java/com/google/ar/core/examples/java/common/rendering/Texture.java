@@ -1,29 +1,81 @@
 package com.google.ar.core.examples.java.common.rendering;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.Buffer;
+import java.nio.IntBuffer;
 
 public class Texture {
-  private static final int SIZE = 128;
-
   private int width, height;
+  private boolean mipmapped;
+  private int target = GLES20.GL_TEXTURE_2D;
+  private int format = GLES20.GL_RGBA;
+  private int type = GLES20.GL_UNSIGNED_BYTE;
+  private boolean filtered = true;
   private int textureId = -1;
 
-  public Texture() {
-    this(SIZE, SIZE);
+  public Texture(int width, int height) {
+    this(width, height, false);
   }
 
-  public Texture(int width, int height) {
+  /**
+   * @param mipmapped Whether to allocate the full mip chain and sample it with trilinear
+   *     filtering. The levels are loaded with {@link #loadSubImage(int, int, int, int, int,
+   *     Buffer)}.
+   */
+  public Texture(int width, int height, boolean mipmapped) {
     assert(width > 0);
     assert(height > 0);
     this.width = width;
     this.height = height;
+    this.mipmapped = mipmapped;
+  }
+
+  /**
+   * Like {@link #Texture(int, int, boolean)}, with the given glTexImage2D format and type, e.g.
+   * GL_RGB and GL_UNSIGNED_SHORT_5_6_5. Loaded buffers must hold texels of that layout.
+   */
+  public Texture(int width, int height, boolean mipmapped, int format, int type) {
+    this(width, height, mipmapped);
+    this.format = format;
+    this.type = type;
+  }
+
+  /**
+   * Creates a GL_TEXTURE_CUBE_MAP of six size * size faces, in the order of
+   * GL_TEXTURE_CUBE_MAP_POSITIVE_X to GL_TEXTURE_CUBE_MAP_NEGATIVE_Z, otherwise like {@link
+   * #Texture(int, int, boolean, int, int)}. Its faces are loaded with {@link #subImage(int, int,
+   * int, int, int, int, Buffer)}.
+   */
+  public static Texture createCubeMap(int size, boolean mipmapped, int format, int type) {
+    Texture texture = new Texture(size, size, mipmapped, format, type);
+    texture.target = GLES20.GL_TEXTURE_CUBE_MAP;
+    return texture;
+  }
+
+  /**
+   * Sets whether a mipmapped texture is sampled with trilinear filtering, the default, or with
+   * the nearest texel of the nearest level, for texels that cannot be interpolated. Must be
+   * called before {@link #createOnGlThread(Context)}.
+   */
+  public void setFiltered(boolean filtered) {
+    this.filtered = filtered;
+  }
+
+  /** Returns the number of mip levels, 1 unless the texture is mipmapped. */
+  public int getLevelCount() {
+    return mipmapped ? 32 - Integer.numberOfLeadingZeros(Math.max(width, height)) : 1;
+  }
+
+  /** Returns GL_TEXTURE_CUBE_MAP for a cube map, GL_TEXTURE_2D otherwise. */
+  public int getTarget() {
+    return target;
+  }
+
+  public boolean isCubeMap() {
+    return target == GLES20.GL_TEXTURE_CUBE_MAP;
   }
 
   public int getTextureId() {
@@ -41,21 +93,82 @@ public class Texture {
     this.textureId = textures[0];
 
     // Setup the texture
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, this.textureId);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    GLES20.glBindTexture(this.target, this.textureId);
+    GLES20.glTexParameteri(this.target, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameteri(this.target, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    if (this.mipmapped && this.filtered) {
+      GLES20.glTexParameteri(
+          this.target, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
+      GLES20.glTexParameteri(this.target, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    } else if (this.mipmapped) {
+      GLES20.glTexParameteri(
+          this.target, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST_MIPMAP_NEAREST);
+      GLES20.glTexParameteri(this.target, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+    } else {
+      GLES20.glTexParameteri(this.target, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+      GLES20.glTexParameteri(this.target, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+    }
+
+    // Allocate the storage once, load() and loadSubImage() only replace texels
+    int faces = isCubeMap() ? 6 : 1;
+    for (int face = 0; face < faces; face++) {
+      for (int level = 0; level < getLevelCount(); level++) {
+        GLES20.glTexImage2D(getImageTarget(face), level, this.format,
+            Math.max(1, this.width >> level), Math.max(1, this.height >> level), 0,
+            this.format, this.type, null);
+      }
+    }
+    GLES20.glBindTexture(this.target, 0);
+  }
+
+  /**
+   * Uploads width * height RGBA8888 texels, starting at the buffer position. Must be called on
+   * the OpenGL thread.
+   */
+  public void load(IntBuffer pixels) {
+    loadSubImage(0, 0, this.width, this.height, pixels);
+  }
+
+  /**
+   * Replaces a w * h rectangle of texels at (x, y) with tightly packed texels, RGBA8888 unless
+   * the texture was created with another format, starting at the buffer position. Must be called
+   * on the OpenGL thread.
+   */
+  public void loadSubImage(int x, int y, int w, int h, Buffer pixels) {
+    loadSubImage(0, x, y, w, h, pixels);
+  }
+
+  /** Like {@link #loadSubImage(int, int, int, int, Buffer)}, for the given mip level. */
+  public void loadSubImage(int level, int x, int y, int w, int h, Buffer pixels) {
+    bind();
+    subImage(0, level, x, y, w, h, pixels);
+    unbind();
   }
 
-  public void load(Bitmap bitmap) {
-//    byte[] pixels = new byte[this.width * this.height * 4];
-//    texture.getPixels(pixels, 0, 0, 0, 0, this.width, this.height);
+  /**
+   * Binds the texture to texture unit 0, so a batch of {@link #subImage(int, int, int, int, int,
+   * int, Buffer)} calls can follow without rebinding. Must be called on the OpenGL thread.
+   */
+  public void bind() {
     GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, this.textureId);
-    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
-//    GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, this.width, this.height, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    GLES20.glBindTexture(this.target, this.textureId);
+  }
+
+  public void unbind() {
+    GLES20.glBindTexture(this.target, 0);
+  }
+
+  /**
+   * Replaces a rectangle of texels like {@link #loadSubImage(int, int, int, int, int, Buffer)},
+   * in the given face of a cube map, or face 0 of a 2D texture. The texture must be bound with
+   * {@link #bind()}.
+   */
+  public void subImage(int face, int level, int x, int y, int w, int h, Buffer pixels) {
+    GLES20.glTexSubImage2D(getImageTarget(face), level, x, y, w, h,
+        this.format, this.type, pixels);
+  }
+
+  private int getImageTarget(int face) {
+    return isCubeMap() ? GLES20.GL_TEXTURE_CUBE_MAP_POSITIVE_X + face : GLES20.GL_TEXTURE_2D;
   }
 }
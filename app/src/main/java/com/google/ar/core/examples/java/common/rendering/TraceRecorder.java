@@ -0,0 +1,215 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records how long the rendering and capture stages take into a preallocated ring buffer of
+ * primitive records, for profiling frames offline.
+ *
+ * <p>Recording a stage only writes a few array slots, so it is cheap enough for the per-frame and
+ * per-tile paths where logging used to build a string per call. Call sites time their stages
+ * through {@link StageTimings#record}, which forwards every record here while {@link #ENABLED},
+ * a compile-time constant, is set.
+ *
+ * <p>Any thread may record. Once the buffer is full the oldest records are overwritten. {@link
+ * #writeChromeTrace(Writer)} exports the buffer in the Chrome trace event format, which
+ * chrome://tracing and Perfetto open directly.
+ */
+public final class TraceRecorder {
+  /**
+   * Whether stage records go into the trace. Off by default, as tracing costs every stage a
+   * record and the app an export on pause; turn it on locally to profile.
+   */
+  public static final boolean ENABLED = false;
+
+  /** Number of records kept, a power of two. */
+  public static final int CAPACITY = 1 << 14;
+
+  /** Value of records that did not count anything. */
+  public static final long NO_VALUE = Long.MIN_VALUE;
+
+  /** A traced stage, the name shows up in the exported trace. */
+  public enum Stage {
+    /** One onDrawFrame call. */
+    FRAME("frame"),
+    /** Drawing the camera background. */
+    BACKGROUND("background"),
+    /** Copying a camera image into the capture stage. */
+    SUBMIT("submit"),
+    /** Uploading a finished face snapshot, the value is the number of bytes. */
+    UPLOAD("upload"),
+    /** Drawing the debug quads of the environment faces. */
+    QUADS("quads"),
+    /** Updating and drawing the point cloud. */
+    POINT_CLOUD("point cloud"),
+    /** Drawing the detected planes. */
+    PLANES("planes"),
+    /** Drawing the virtual objects. */
+    DRAW_OBJECTS("draw objects"),
+    /** Refreshing and drawing the performance overlay. */
+    HUD("hud"),
+    /** One frame on the capture worker, from update to publishing the snapshot. */
+    CAPTURE("capture"),
+    /** AREnvironment.update. */
+    UPDATE("update"),
+    /** Shrinking the camera image into the thumbnail. */
+    DOWNSAMPLE("downsample"),
+    /** Planning the sample strides, the value is the number of samples. */
+    PLAN("plan"),
+    /** One projection tile, on the thread that ran it. */
+    PROJECT_TILE("project tile"),
+    /** Merging the tiles into the running average. */
+    MERGE("merge"),
+    /** Filling unobserved texels. */
+    FILL("fill"),
+    /** Prefiltering the rough levels. */
+    PREFILTER("prefilter"),
+    /** Copying the faces into a snapshot. */
+    COPY("copy"),
+    /** Saving the environment cache. */
+    CACHE_SAVE("cache save"),
+    /** Loading the environment cache. */
+    CACHE_LOAD("cache load"),
+    /** Copying a frame into the frame recorder. */
+    RECORD("record");
+
+    private final String label;
+
+    Stage(String label) {
+      this.label = label;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  private static final int MASK = CAPACITY - 1;
+
+  // One record per slot: stage ordinal, recording thread, start and duration in nanoseconds, and
+  // the value or NO_VALUE.
+  private static final int[] stages = new int[CAPACITY];
+  private static final long[] threads = new long[CAPACITY];
+  private static final long[] starts = new long[CAPACITY];
+  private static final long[] durations = new long[CAPACITY];
+  private static final long[] values = new long[CAPACITY];
+
+  // Total number of records so far. Slots are claimed with one increment, so concurrent threads
+  // never write the same slot unless the buffer wraps around within a single record.
+  private static final AtomicLong count = new AtomicLong();
+
+  private TraceRecorder() {}
+
+  /** Records a stage that started at {@code startNanos}, from {@link System#nanoTime()}. */
+  public static void record(Stage stage, long startNanos) {
+    record(stage, startNanos, NO_VALUE);
+  }
+
+  /** Records a stage that started at {@code startNanos} together with a value it counted. */
+  public static void record(Stage stage, long startNanos, long value) {
+    record(stage, startNanos, System.nanoTime(), value);
+  }
+
+  /** Records a stage that ran from {@code startNanos} to {@code endNanos}, with a value. */
+  public static void record(Stage stage, long startNanos, long endNanos, long value) {
+    int slot = (int) (count.getAndIncrement() & MASK);
+    stages[slot] = stage.ordinal();
+    threads[slot] = Thread.currentThread().getId();
+    starts[slot] = startNanos;
+    durations[slot] = endNanos - startNanos;
+    values[slot] = value;
+  }
+
+  /** Returns the number of records currently held, at most {@link #CAPACITY}. */
+  public static int size() {
+    return (int) Math.min(count.get(), CAPACITY);
+  }
+
+  /** Drops all records. */
+  public static void clear() {
+    count.set(0);
+  }
+
+  /**
+   * Writes the held records, oldest first, as a Chrome trace event JSON object. Records written
+   * while exporting may show up torn, so export while the stages are idle, e.g. when paused.
+   */
+  public static void writeChromeTrace(Writer writer) throws IOException {
+    Stage[] stageValues = Stage.values();
+    long total = count.get();
+    long first = Math.max(0, total - CAPACITY);
+    StringBuilder event = new StringBuilder(128);
+
+    writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+    boolean separator = false;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      event.setLength(0);
+      if (separator) {
+        event.append(',');
+      }
+      event.append("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":0,\"tid\":")
+          .append(thread.getId())
+          .append(",\"args\":{\"name\":\"");
+      appendEscaped(event, thread.getName());
+      event.append("\"}}");
+      writer.append(event);
+      separator = true;
+    }
+
+    for (long i = first; i < total; i++) {
+      int slot = (int) (i & MASK);
+      event.setLength(0);
+      if (separator) {
+        event.append(',');
+      }
+      event.append("\n{\"name\":\"")
+          .append(stageValues[stages[slot]].getLabel())
+          .append("\",\"ph\":\"X\",\"pid\":0,\"tid\":")
+          .append(threads[slot])
+          .append(",\"ts\":");
+      appendMicros(event, starts[slot]);
+      event.append(",\"dur\":");
+      appendMicros(event, durations[slot]);
+      if (values[slot] != NO_VALUE) {
+        event.append(",\"args\":{\"value\":").append(values[slot]).append('}');
+      }
+      event.append('}');
+      writer.append(event);
+      separator = true;
+    }
+    writer.write("\n]}\n");
+    writer.flush();
+  }
+
+  // Chrome traces are in microseconds, keep the nanoseconds as three decimals.
+  private static void appendMicros(StringBuilder builder, long nanos) {
+    if (nanos < 0) {
+      builder.append('-');
+      nanos = -nanos;
+    }
+    long fraction = nanos % 1000;
+    builder.append(nanos / 1000).append('.');
+    if (fraction < 100) {
+      builder.append('0');
+    }
+    if (fraction < 10) {
+      builder.append('0');
+    }
+    builder.append(fraction);
+  }
+
+  private static void appendEscaped(StringBuilder builder, String text) {
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\') {
+        builder.append('\\').append(c);
+      } else if (c < 0x20) {
+        builder.append(' ');
+      } else {
+        builder.append(c);
+      }
+    }
+  }
+}
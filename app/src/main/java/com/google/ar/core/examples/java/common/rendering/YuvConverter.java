@@ -0,0 +1,121 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts YUV_420_888 camera images to RGBA texels packed as 0xAABBGGRR, like the environment
+ * faces.
+ *
+ * <p>The planes are addressed through their row and pixel strides, so padded rows and both
+ * planar and interleaved chroma layouts convert correctly. The fixed-point BT.601 multiplies of
+ * {@link AREnvironment#yuvToARGB} are replaced by per-channel lookup tables, and the clamp by a
+ * table indexed with the 8-bit result.
+ *
+ * <p>Not thread-safe: {@link #convertRow} moves the position of the frame's plane readers, see
+ * CameraFrame#getPlaneReader, so a frame may only be converted by one thread at a time. The
+ * frame keeps its readers as long as its plane buffers, so converting a stream of pooled frames
+ * does not allocate.
+ */
+public class YuvConverter {
+  // Same 10-bit fixed point coefficients as yuvToARGB.
+  private static final int[] Y_TABLE = new int[256];
+  private static final int[] RV_TABLE = new int[256];
+  private static final int[] GV_TABLE = new int[256];
+  private static final int[] GU_TABLE = new int[256];
+  private static final int[] BU_TABLE = new int[256];
+
+  // Clamps a channel in 10-bit fixed point, shifted down to 8 bits, to [0, 255]. Indexed with
+  // the shifted value plus CLAMP_OFFSET.
+  private static final int CLAMP_OFFSET = 512;
+  private static final int[] CLAMP = new int[1024 + CLAMP_OFFSET];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      Y_TABLE[i] = 1192 * i;
+      RV_TABLE[i] = 1634 * (i - 128);
+      GV_TABLE[i] = -833 * (i - 128);
+      GU_TABLE[i] = -400 * (i - 128);
+      BU_TABLE[i] = 2066 * (i - 128);
+    }
+    for (int i = 0; i < CLAMP.length; i++) {
+      CLAMP[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+    }
+  }
+
+  private int width;
+  private int height;
+
+  private final ByteBuffer[] planes = new ByteBuffer[CameraFrame.NUM_PLANES];
+  private final int[] rowStrides = new int[CameraFrame.NUM_PLANES];
+  private final int[] pixelStrides = new int[CameraFrame.NUM_PLANES];
+
+  // One row of each plane, for the bulk gets of convertRow().
+  private byte[] yRow = new byte[0];
+  private byte[] uRow = new byte[0];
+  private byte[] vRow = new byte[0];
+
+  /** Starts converting the given frame. */
+  public void setFrame(CameraFrame frame) {
+    width = frame.getWidth();
+    height = frame.getHeight();
+    for (int i = 0; i < CameraFrame.NUM_PLANES; i++) {
+      planes[i] = frame.getPlaneReader(i);
+      planes[i].limit(frame.getPlane(i).limit());
+      rowStrides[i] = frame.getRowStride(i);
+      pixelStrides[i] = frame.getPixelStride(i);
+    }
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Converts a whole row into {@code out}, starting at {@code offset}. Each plane row is fetched
+   * with one bulk get. The row must be in [0, height) and the planes must hold it.
+   */
+  public void convertRow(int row, int[] out, int offset) {
+    int yLength = (width - 1) * pixelStrides[0] + 1;
+    int chromaWidth = (width + 1) >> 1;
+    int uLength = (chromaWidth - 1) * pixelStrides[1] + 1;
+    int vLength = (chromaWidth - 1) * pixelStrides[2] + 1;
+    if (yRow.length < yLength) {
+      yRow = new byte[yLength];
+    }
+    if (uRow.length < uLength) {
+      uRow = new byte[uLength];
+    }
+    if (vRow.length < vLength) {
+      vRow = new byte[vLength];
+    }
+    readRow(planes[0], row * rowStrides[0], yRow, yLength);
+    readRow(planes[1], (row >> 1) * rowStrides[1], uRow, uLength);
+    readRow(planes[2], (row >> 1) * rowStrides[2], vRow, vLength);
+
+    final int yStride = pixelStrides[0], uStride = pixelStrides[1], vStride = pixelStrides[2];
+    for (int x = 0; x < width; x++) {
+      int chroma = x >> 1;
+      out[offset + x] =
+          toRgba(yRow[x * yStride] & 0xff, uRow[chroma * uStride] & 0xff,
+              vRow[chroma * vStride] & 0xff);
+    }
+  }
+
+  /** Converts one pixel from unsigned Y, U and V bytes. */
+  public static int toRgba(int y, int u, int v) {
+    int luma = Y_TABLE[y];
+    int r = CLAMP[((luma + RV_TABLE[v]) >> 10) + CLAMP_OFFSET];
+    int g = CLAMP[((luma + GV_TABLE[v] + GU_TABLE[u]) >> 10) + CLAMP_OFFSET];
+    int b = CLAMP[((luma + BU_TABLE[u]) >> 10) + CLAMP_OFFSET];
+    return 0xff000000 | (b << 16) | (g << 8) | r;
+  }
+
+  private static void readRow(ByteBuffer plane, int position, byte[] row, int length) {
+    plane.position(position);
+    plane.get(row, 0, length);
+  }
+}
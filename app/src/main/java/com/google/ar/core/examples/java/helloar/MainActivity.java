@@ -16,6 +16,7 @@
 
 package com.google.ar.core.examples.java.helloar;
 
+import android.app.ActivityManager;
 import android.media.Image;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
@@ -43,18 +44,34 @@ import com.google.ar.core.examples.java.common.helpers.SnackbarHelper;
 import com.google.ar.core.examples.java.common.helpers.TapHelper;
 import com.google.ar.core.examples.java.common.rendering.AREnvironment;
 import com.google.ar.core.examples.java.common.rendering.BackgroundRenderer;
+import com.google.ar.core.examples.java.common.rendering.CaptureTrigger;
+import com.google.ar.core.examples.java.common.rendering.EnvironmentCache;
+import com.google.ar.core.examples.java.common.rendering.EnvironmentCapture;
+import com.google.ar.core.examples.java.common.rendering.EnvironmentLayout;
+import com.google.ar.core.examples.java.common.rendering.EnvironmentTextures;
+import com.google.ar.core.examples.java.common.rendering.FaceFormat;
+import com.google.ar.core.examples.java.common.rendering.FrameRecorder;
 import com.google.ar.core.examples.java.common.rendering.ObjectRenderer;
 import com.google.ar.core.examples.java.common.rendering.ObjectRenderer.BlendMode;
+import com.google.ar.core.examples.java.common.rendering.ObjectRenderer.LightingMode;
+import com.google.ar.core.examples.java.common.rendering.PerfHudRenderer;
 import com.google.ar.core.examples.java.common.rendering.PlaneRenderer;
 import com.google.ar.core.examples.java.common.rendering.PointCloudRenderer;
 import com.google.ar.core.examples.java.common.rendering.QuadRenderer;
+import com.google.ar.core.examples.java.common.rendering.StageTimings;
+import com.google.ar.core.examples.java.common.rendering.TraceRecorder;
+import com.google.ar.core.examples.java.common.rendering.TraceRecorder.Stage;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
 import com.google.ar.core.exceptions.UnavailableApkTooOldException;
 import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
 import com.google.ar.core.exceptions.UnavailableDeviceNotCompatibleException;
 import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 import com.google.ar.core.exceptions.UnavailableUserDeclinedInstallationException;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -67,13 +84,58 @@ import javax.microedition.khronos.opengles.GL10;
 public class MainActivity extends AppCompatActivity implements GLSurfaceView.Renderer {
   private static final String TAG = MainActivity.class.getSimpleName();
 
+  // Chrome trace and stage timings written on pause, under the app's external files directory.
+  // The trace while TraceRecorder.ENABLED is set, the timings while EXPORT_STAGE_TIMINGS is.
+  private static final boolean EXPORT_STAGE_TIMINGS = false;
+  private static final String TRACE_FILE_NAME = "trace.json";
+  private static final String TIMINGS_FILE_NAME = "timings.csv";
+  private static final String HISTOGRAMS_FILE_NAME = "timing_histograms.csv";
+
+  // Storage of the environment textures. RGB565 halves the upload bandwidth, RGBM and RGBE keep
+  // values above 1.
+  private static final FaceFormat FACE_FORMAT = FaceFormat.RGBA8888;
+
+  // How the environment maps directions to texels: six cube faces uploaded as a cube map, or one
+  // octahedral face uploaded as a 2D texture.
+  private static final EnvironmentLayout ENVIRONMENT_LAYOUT = EnvironmentLayout.CUBE;
+
+  // Environment resolution as the side of a cube face, picked from the device class unless the
+  // launch intent overrides it, e.g. adb shell am start --ei environmentSize 256 <activity>.
+  private static final String EXTRA_ENVIRONMENT_SIZE = "environmentSize";
+  private static final int LOW_END_ENVIRONMENT_SIZE = 32;
+  private static final int HIGH_END_ENVIRONMENT_SIZE = 256;
+  // Heap limit in MB and core count from which a device counts as high-end.
+  private static final int HIGH_END_MEMORY_CLASS = 512;
+  private static final int HIGH_END_PROCESSORS = 8;
+
+  // Whether to also keep the environment faces in 2D textures and draw them, the cube faces
+  // unfolded.
+  private static final boolean SHOW_ENVIRONMENT_FACES = true;
+
+  // Environment saved on pause and restored on the first resume, in the app's private files.
+  private static final String ENVIRONMENT_CACHE_FILE_NAME = "environment.cache";
+
+  // Whether to record every frame for replay on a desktop JVM, under the app's external files
+  // directory. See FrameLog.
+  private static final boolean RECORD_FRAMES = false;
+  private static final String FRAME_LOG_FILE_NAME = "frames.arlog";
+
+  // Whether to draw the stage timings over the scene.
+  private static final boolean SHOW_PERF_HUD = false;
+  private static final float[] PERF_HUD_COORDS =
+      new float[] {-1.0f, 0.75f, 0.0f, -1.0f, 1.0f, 0.0f, 0.2f, 0.75f, 0.0f, 0.2f, 1.0f, 0.0f};
+
   // Rendering. The Renderers are created here, and initialized when the GL surface is created.
   private GLSurfaceView surfaceView;
 
   private boolean installRequested;
 
   private AREnvironment env;
+  private EnvironmentTextures envTextures;
+  private EnvironmentCapture envCapture;
   private QuadRenderer[] quadRenderers;
+  private FrameRecorder frameRecorder;
+  private boolean environmentCacheLoaded;
 
   private Session session;
   private final SnackbarHelper messageSnackbarHelper = new SnackbarHelper();
@@ -85,6 +147,18 @@ public class MainActivity extends AppCompatActivity implements GLSurfaceView.Ren
   private final ObjectRenderer virtualObjectShadow = new ObjectRenderer();
   private final PlaneRenderer planeRenderer = new PlaneRenderer();
   private final PointCloudRenderer pointCloudRenderer = new PointCloudRenderer();
+  private final PerfHudRenderer perfHud =
+      new PerfHudRenderer(
+          PERF_HUD_COORDS,
+          Stage.FRAME,
+          Stage.BACKGROUND,
+          Stage.SUBMIT,
+          Stage.UPLOAD,
+          Stage.QUADS,
+          Stage.POINT_CLOUD,
+          Stage.PLANES,
+          Stage.DRAW_OBJECTS,
+          Stage.CAPTURE);
 
   // Temporary matrix allocated here to reduce number of allocations for each frame.
   private final float[] anchorMatrix = new float[16];
@@ -92,17 +166,22 @@ public class MainActivity extends AppCompatActivity implements GLSurfaceView.Ren
   // Anchors created from taps used for object placing.
   private final ArrayList<Anchor> anchors = new ArrayList<>();
 
+  // The faces are stored in the cube map layout, see EnvironmentLayout.isTextureFlippedX(), so the
+  // quads of the flipped faces have their corners mirrored to show them upright.
   private static final float[][] ENV_QUAD_COORDS = new float[][] {
-    new float[] { -0.4f, -0.6f, 0.0f, -0.4f, -0.4f, 0.0f, -0.1f, -0.6f, 0.0f, -0.1f, -0.4f, 0.0f },
-    new float[] { -1.0f, -0.6f, 0.0f, -1.0f, -0.4f, 0.0f, -0.7f, -0.6f, 0.0f, -0.7f, -0.4f, 0.0f },
-    new float[] { -0.7f, -0.4f, 0.0f, -0.7f, -0.2f, 0.0f, -0.4f, -0.4f, 0.0f, -0.4f, -0.2f, 0.0f },
+    new float[] { -0.1f, -0.6f, 0.0f, -0.1f, -0.4f, 0.0f, -0.4f, -0.6f, 0.0f, -0.4f, -0.4f, 0.0f },
+    new float[] { -0.7f, -0.4f, 0.0f, -0.7f, -0.6f, 0.0f, -1.0f, -0.4f, 0.0f, -1.0f, -0.6f, 0.0f },
+    new float[] { -0.4f, -0.4f, 0.0f, -0.4f, -0.2f, 0.0f, -0.7f, -0.4f, 0.0f, -0.7f, -0.2f, 0.0f },
     new float[] { -0.7f, -0.8f, 0.0f, -0.7f, -0.6f, 0.0f, -0.4f, -0.8f, 0.0f, -0.4f, -0.6f, 0.0f },
-    new float[] { -0.1f, -0.6f, 0.0f, -0.1f, -0.4f, 0.0f, 0.2f, -0.6f, 0.0f, 0.2f, -0.4f, 0.0f },
-    new float[] { -0.7f, -0.6f, 0.0f, -0.7f, -0.4f, 0.0f, -0.4f, -0.6f, 0.0f, -0.4f, -0.4f, 0.0f },
+    new float[] { 0.2f, -0.6f, 0.0f, 0.2f, -0.4f, 0.0f, -0.1f, -0.6f, 0.0f, -0.1f, -0.4f, 0.0f },
+    new float[] { -0.4f, -0.4f, 0.0f, -0.4f, -0.6f, 0.0f, -0.7f, -0.4f, 0.0f, -0.7f, -0.6f, 0.0f },
+  };
+  private static final float[] ENV_OCTAHEDRAL_QUAD_COORDS = new float[] {
+    -1.0f, -0.8f, 0.0f, -1.0f, -0.2f, 0.0f, -0.4f, -0.8f, 0.0f, -0.4f, -0.2f, 0.0f
   };
 
-  private int drawCount = 0;
-  private static final int GAP = 30;
+  // Decides which frames are worth capturing into the environment.
+  private final CaptureTrigger captureTrigger = new CaptureTrigger();
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -117,19 +196,38 @@ public class MainActivity extends AppCompatActivity implements GLSurfaceView.Ren
 
     // Set up renderer.
     surfaceView.setPreserveEGLContextOnPause(true);
-    surfaceView.setEGLContextClientVersion(2);
+    // OpenGL ES 3.0 filters across cube map faces, which 2.0 leaves to the driver
+    surfaceView.setEGLContextClientVersion(3);
     surfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0); // Alpha used for plane blending.
     surfaceView.setRenderer(this);
     surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
 
     installRequested = false;
 
-    env = new AREnvironment();
-    quadRenderers = new QuadRenderer[6];
-    for (int i = 0; i < 6; i++) {
-      quadRenderers[i] = new QuadRenderer(ENV_QUAD_COORDS[i], env.getTexture(i));
+    env = new AREnvironment(ENVIRONMENT_LAYOUT, chooseEnvironmentSize());
+    env.setThreadCount(Runtime.getRuntime().availableProcessors());
+    env.setFaceFormat(FACE_FORMAT);
+    envTextures = new EnvironmentTextures(env, SHOW_ENVIRONMENT_FACES);
+    envCapture = new EnvironmentCapture(env, envTextures);
+    if (SHOW_ENVIRONMENT_FACES) {
+      quadRenderers = new QuadRenderer[env.getFaceCount()];
+      for (int i = 0; i < quadRenderers.length; i++) {
+        float[] coords =
+            ENVIRONMENT_LAYOUT == EnvironmentLayout.CUBE
+                ? ENV_QUAD_COORDS[i]
+                : ENV_OCTAHEDRAL_QUAD_COORDS;
+        quadRenderers[i] = new QuadRenderer(coords, envTextures.getFaceTexture(i));
+        quadRenderers[i].setFaceFormat(FACE_FORMAT);
+      }
+    }
+    if (RECORD_FRAMES) {
+      try {
+        frameRecorder =
+            new FrameRecorder(new File(getExternalFilesDir(null), FRAME_LOG_FILE_NAME));
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to create the frame log", e);
+      }
     }
-
   }
 
   @Override
@@ -198,9 +296,34 @@ public class MainActivity extends AppCompatActivity implements GLSurfaceView.Ren
     surfaceView.onResume();
     displayRotationHelper.onResume();
 
+    // Only a fresh environment is worth replacing, later resumes keep what was captured
+    if (!environmentCacheLoaded) {
+      environmentCacheLoaded = true;
+      try {
+        EnvironmentCache.Result result =
+            envCapture.loadCache(new File(getFilesDir(), ENVIRONMENT_CACHE_FILE_NAME));
+        Log.i(TAG, "Environment cache: " + result);
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to load the environment cache", e);
+      }
+    }
+
     messageSnackbarHelper.showMessage(this, "Searching for surfaces...");
   }
 
+  @Override
+  protected void onDestroy() {
+    envCapture.release();
+    if (frameRecorder != null) {
+      try {
+        frameRecorder.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to close the frame log", e);
+      }
+    }
+    super.onDestroy();
+  }
+
   @Override
   public void onPause() {
     super.onPause();
@@ -212,6 +335,76 @@ public class MainActivity extends AppCompatActivity implements GLSurfaceView.Ren
       surfaceView.onPause();
       session.pause();
     }
+    try {
+      envCapture.saveCache(new File(getFilesDir(), ENVIRONMENT_CACHE_FILE_NAME));
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to save the environment cache", e);
+    }
+    Log.i(TAG, "Uploaded " + envTextures.getTotalUploadedBytes() + " environment bytes as "
+        + envTextures.getFormat());
+    if (frameRecorder != null) {
+      Log.i(TAG, "Recorded " + frameRecorder.getRecordedCount() + " frames, dropped "
+          + frameRecorder.getDroppedCount());
+    }
+    if (TraceRecorder.ENABLED) {
+      exportTrace();
+    }
+    if (EXPORT_STAGE_TIMINGS) {
+      exportStageTimings();
+    }
+  }
+
+  /**
+   * Returns the side of a cube face for the environment: the launch intent's choice if it is
+   * valid, otherwise a size matching the device class.
+   */
+  private int chooseEnvironmentSize() {
+    int requested = getIntent().getIntExtra(EXTRA_ENVIRONMENT_SIZE, 0);
+    if (AREnvironment.isValidCubeSize(requested)) {
+      return requested;
+    }
+    if (requested != 0) {
+      Log.w(TAG, "Ignoring invalid environment size " + requested);
+    }
+    ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
+    if (activityManager.isLowRamDevice()) {
+      return LOW_END_ENVIRONMENT_SIZE;
+    }
+    if (activityManager.getMemoryClass() >= HIGH_END_MEMORY_CLASS
+        && Runtime.getRuntime().availableProcessors() >= HIGH_END_PROCESSORS) {
+      return HIGH_END_ENVIRONMENT_SIZE;
+    }
+    return AREnvironment.DEFAULT_CUBE_SIZE;
+  }
+
+  /** Writes the recorded trace where adb can pull it, replacing the previous export. */
+  private void exportTrace() {
+    File directory = getExternalFilesDir(null);
+    try (Writer writer = new BufferedWriter(new FileWriter(new File(directory, TRACE_FILE_NAME)))) {
+      TraceRecorder.writeChromeTrace(writer);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write the trace", e);
+    }
+  }
+
+  /**
+   * Writes the stage timing percentiles and histograms where adb can pull them, replacing the
+   * previous export.
+   */
+  private void exportStageTimings() {
+    File directory = getExternalFilesDir(null);
+    try (Writer writer =
+        new BufferedWriter(new FileWriter(new File(directory, TIMINGS_FILE_NAME)))) {
+      StageTimings.writeSummaryCsv(writer);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write the stage timings", e);
+    }
+    try (Writer writer =
+        new BufferedWriter(new FileWriter(new File(directory, HISTOGRAMS_FILE_NAME)))) {
+      StageTimings.writeHistogramCsv(writer);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write the stage histograms", e);
+    }
   }
 
   @Override
@@ -243,18 +436,27 @@ public class MainActivity extends AppCompatActivity implements GLSurfaceView.Ren
       backgroundRenderer.createOnGlThread(/*context=*/ this);
       planeRenderer.createOnGlThread(/*context=*/ this, "models/trigrid.png");
       pointCloudRenderer.createOnGlThread(/*context=*/ this);
+      envTextures.createOnGlThread(/*context=*/ this);
 
+      virtualObject.setLightingMode(LightingMode.Environment);
       virtualObject.createOnGlThread(/*context=*/ this, "models/andy.obj", "models/andy.png");
-      virtualObject.setMaterialProperties(0.0f, 2.0f, 0.5f, 6.0f);
+      virtualObject.setMaterialProperties(0.0f, 1.0f, 0.5f, 6.0f);
+      virtualObject.setIrradianceCoefficients(envCapture.getIrradianceCoefficients());
+      virtualObject.setLight(envCapture.getLightDirection(), envCapture.getLightColor());
+      virtualObject.setEnvironmentMap(envTextures.getEnvironmentMap(), FACE_FORMAT);
 
       virtualObjectShadow.createOnGlThread(
           /*context=*/ this, "models/andy_shadow.obj", "models/andy_shadow.png");
       virtualObjectShadow.setBlendMode(BlendMode.Shadow);
       virtualObjectShadow.setMaterialProperties(1.0f, 0.0f, 0.0f, 1.0f);
 
-      for (int i = 0; i < 6; i++) {
-        quadRenderers[i].createOnGlThread(this);
-        Log.d("Liby", "Generating quadRenderer " + i + " with texture_id " + quadRenderers[i].getTextureId());
+      if (SHOW_ENVIRONMENT_FACES) {
+        for (int i = 0; i < quadRenderers.length; i++) {
+          quadRenderers[i].createOnGlThread(this);
+        }
+      }
+      if (SHOW_PERF_HUD) {
+        perfHud.createOnGlThread(/*context=*/ this);
       }
     } catch (IOException e) {
       Log.e(TAG, "Failed to read an asset file", e);
@@ -275,6 +477,7 @@ public class MainActivity extends AppCompatActivity implements GLSurfaceView.Ren
     if (session == null) {
       return;
     }
+    final long traceStart = StageTimings.ENABLED ? System.nanoTime() : 0;
     // Notify ARCore session that the view size changed so that the perspective matrix and
     // the video background can be properly adjusted.
     displayRotationHelper.updateSessionIfNeeded(session);
@@ -318,7 +521,11 @@ public class MainActivity extends AppCompatActivity implements GLSurfaceView.Ren
       }
 
       // Draw background. TODO: Redraw background
+      long stageStart = StageTimings.ENABLED ? System.nanoTime() : 0;
       backgroundRenderer.draw(frame);
+      if (StageTimings.ENABLED) {
+        StageTimings.record(Stage.BACKGROUND, stageStart);
+      }
 
       // Get projection matrix.
       float[] projmtx = new float[16];
@@ -328,25 +535,43 @@ public class MainActivity extends AppCompatActivity implements GLSurfaceView.Ren
       float[] viewmtx = new float[16];
       camera.getViewMatrix(viewmtx, 0);
 
-      // TODO: HERE!!!!!
-      if (drawCount > GAP) {
-        drawCount = 0;
-
-        // Acquire image then release
+      // Capture when the camera turned towards new directions, and hold still frames back
+      boolean capture = captureTrigger.update(viewmtx, projmtx, frame.getTimestamp()).isCapture();
+      if (capture || frameRecorder != null) {
         Image image = frame.acquireCameraImage();
-        env.update(image, projmtx, viewmtx);
-        image.close();
-
-        env.drawToTexture();
-      }
-
-      drawCount++;
-      for (int i = 0; i < 6; i++) {
-        quadRenderers[i].draw();
+        // Every frame is recorded, the replay runs the capture trigger itself
+        if (frameRecorder != null) {
+          frameRecorder.record(
+              frame, image, projmtx, viewmtx, session.getAllTrackables(Plane.class));
+        }
+        if (capture) {
+          // The capture stage copies and releases the image before returning
+          captureTrigger.onCaptureSubmitted(envCapture.submit(image, projmtx, viewmtx));
+        } else {
+          image.close();
+        }
       }
 
+      // Only the texture upload happens here, the projection runs on the capture worker
+      envCapture.uploadOnGlThread();
 
+      if (SHOW_ENVIRONMENT_FACES) {
+        stageStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+        for (int i = 0; i < quadRenderers.length; i++) {
+          quadRenderers[i].draw();
+        }
+        if (StageTimings.ENABLED) {
+          StageTimings.record(Stage.QUADS, stageStart);
+        }
+      }
 
+      if (SHOW_PERF_HUD) {
+        stageStart = StageTimings.ENABLED ? System.nanoTime() : 0;
+        perfHud.draw();
+        if (StageTimings.ENABLED) {
+          StageTimings.record(Stage.HUD, stageStart);
+        }
+      }
 
       // If not tracking, don't draw 3d objects.
       if (camera.getTrackingState() == TrackingState.PAUSED) {
@@ -360,6 +585,7 @@ public class MainActivity extends AppCompatActivity implements GLSurfaceView.Ren
       frame.getLightEstimate().getColorCorrection(colorCorrectionRgba, 0);
 
       // Visualize tracked points.
+      stageStart = StageTimings.ENABLED ? System.nanoTime() : 0;
       PointCloud pointCloud = frame.acquirePointCloud();
       pointCloudRenderer.update(pointCloud);
       pointCloudRenderer.draw(viewmtx, projmtx);
@@ -367,6 +593,9 @@ public class MainActivity extends AppCompatActivity implements GLSurfaceView.Ren
       // Application is responsible for releasing the point cloud resources after
       // using it.
       pointCloud.release();
+      if (StageTimings.ENABLED) {
+        StageTimings.record(Stage.POINT_CLOUD, stageStart);
+      }
 
       // Check if we detected at least one plane. If so, hide the loading message.
       if (messageSnackbarHelper.isShowing()) {
@@ -380,10 +609,15 @@ public class MainActivity extends AppCompatActivity implements GLSurfaceView.Ren
       }
 
       // Visualize planes.
+      stageStart = StageTimings.ENABLED ? System.nanoTime() : 0;
       planeRenderer.drawPlanes(
           session.getAllTrackables(Plane.class), camera.getDisplayOrientedPose(), projmtx);
+      if (StageTimings.ENABLED) {
+        StageTimings.record(Stage.PLANES, stageStart);
+      }
 
       // Visualize anchors created by touch.
+      stageStart = StageTimings.ENABLED ? System.nanoTime() : 0;
       float scaleFactor = 1.0f;
       for (Anchor anchor : anchors) {
         if (anchor.getTrackingState() != TrackingState.TRACKING) {
@@ -399,10 +633,17 @@ public class MainActivity extends AppCompatActivity implements GLSurfaceView.Ren
         virtualObject.draw(viewmtx, projmtx, colorCorrectionRgba);
         virtualObjectShadow.draw(viewmtx, projmtx, colorCorrectionRgba);
       }
+      if (StageTimings.ENABLED) {
+        StageTimings.record(Stage.DRAW_OBJECTS, stageStart);
+      }
 
     } catch (Throwable t) {
       // Avoid crashing the application due to unhandled exceptions.
       Log.e(TAG, "Exception on the OpenGL thread", t);
+    } finally {
+      if (StageTimings.ENABLED) {
+        StageTimings.record(Stage.FRAME, traceStart);
+      }
     }
   }
 }
@@ -0,0 +1,46 @@
+package com.google.ar.core.examples.java.benchmarks;
+
+import com.google.ar.core.examples.java.common.rendering.CameraDownsampler;
+import com.google.ar.core.examples.java.common.rendering.CameraFrame;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CameraDownsampler#downsample(CameraFrame)}, the first step of every update, at several
+ * camera resolutions and block sizes. The thumbnail is reused, so this should not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CameraDownsamplerBenchmark {
+  @Param({"640x480", "1280x720", "1920x1080"})
+  public String resolution;
+
+  @Param({"4", "8"})
+  public int factor;
+
+  private CameraFrame frame;
+  private CameraDownsampler downsampler;
+
+  @Setup
+  public void setUp() {
+    int[] size = SyntheticFrames.parseResolution(resolution);
+    frame = SyntheticFrames.createFrames(size[0], size[1], 1)[0];
+    downsampler = new CameraDownsampler(factor);
+  }
+
+  @Benchmark
+  public float[] downsample() {
+    downsampler.downsample(frame);
+    return downsampler.getPixels();
+  }
+}
@@ -0,0 +1,92 @@
+package com.google.ar.core.examples.java.benchmarks;
+
+import com.google.ar.core.examples.java.common.rendering.AREnvironment;
+import com.google.ar.core.examples.java.common.rendering.EnvironmentLayout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping directions to texels, run once per camera sample: the cube face lookups of {@link
+ * AREnvironment} and {@link EnvironmentLayout#getTexel} of both layouts. The directions are
+ * random, so the face branches are as unpredictable as for a camera sweeping across an edge.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DirectionMappingBenchmark {
+  private static final int DIRECTION_COUNT = 1024;
+
+  private final float[] directions = new float[DIRECTION_COUNT * 3];
+  private final int[] faces = new int[DIRECTION_COUNT];
+  private final float[] xy = new float[2];
+  private final int side = AREnvironment.DEFAULT_CUBE_SIZE;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(1);
+    for (int i = 0; i < DIRECTION_COUNT; i++) {
+      float x = (float) random.nextGaussian();
+      float y = (float) random.nextGaussian();
+      float z = (float) random.nextGaussian();
+      directions[i * 3] = x;
+      directions[i * 3 + 1] = y;
+      directions[i * 3 + 2] = z;
+      faces[i] = AREnvironment.getDirectionFace(x, y, z);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DIRECTION_COUNT)
+  public int getDirectionFace() {
+    int result = 0;
+    for (int i = 0; i < DIRECTION_COUNT; i++) {
+      result += AREnvironment.getDirectionFace(
+          directions[i * 3], directions[i * 3 + 1], directions[i * 3 + 2]);
+    }
+    return result;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DIRECTION_COUNT)
+  public float getXYOnFace() {
+    float result = 0;
+    for (int i = 0; i < DIRECTION_COUNT; i++) {
+      AREnvironment.getXYOnFace(
+          directions[i * 3], directions[i * 3 + 1], directions[i * 3 + 2], faces[i], xy);
+      result += xy[0] + xy[1];
+    }
+    return result;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DIRECTION_COUNT)
+  public int cubeTexel() {
+    return getTexels(EnvironmentLayout.CUBE);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DIRECTION_COUNT)
+  public int octahedralTexel() {
+    return getTexels(EnvironmentLayout.OCTAHEDRAL);
+  }
+
+  private int getTexels(EnvironmentLayout layout) {
+    int faceSide = layout.getFaceSize(side);
+    int result = 0;
+    for (int i = 0; i < DIRECTION_COUNT; i++) {
+      result += layout.getTexel(
+          directions[i * 3], directions[i * 3 + 1], directions[i * 3 + 2], faceSide);
+    }
+    return result;
+  }
+}
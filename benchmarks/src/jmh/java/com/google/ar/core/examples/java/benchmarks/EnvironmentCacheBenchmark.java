@@ -0,0 +1,69 @@
+package com.google.ar.core.examples.java.benchmarks;
+
+import com.google.ar.core.examples.java.common.rendering.AREnvironment;
+import com.google.ar.core.examples.java.common.rendering.EnvironmentCache;
+import com.google.ar.core.examples.java.common.rendering.EnvironmentLayout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EnvironmentCache} saving a captured environment on pause and loading it on resume, at
+ * the environment sizes the app picks, through a file in the temporary directory. Includes the
+ * file system, which on a desktop is far faster than on a phone's flash.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EnvironmentCacheBenchmark {
+  @Param({"32", "64", "256"})
+  public int cubeSize;
+
+  @Param({"CUBE", "OCTAHEDRAL"})
+  public EnvironmentLayout layout;
+
+  private final EnvironmentCache cache = new EnvironmentCache();
+  private AREnvironment env;
+  private AREnvironment restored;
+  private File file;
+
+  @Setup
+  public void setUp() throws IOException {
+    env = new AREnvironment(layout, cubeSize);
+    SyntheticFrames.capture(env, 16);
+    restored = new AREnvironment(layout, cubeSize);
+    file = File.createTempFile("environment", ".cache");
+    cache.save(env, file);
+  }
+
+  @TearDown
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Benchmark
+  public File save() throws IOException {
+    cache.save(env, file);
+    return file;
+  }
+
+  @Benchmark
+  public EnvironmentCache.Result load() throws IOException {
+    EnvironmentCache.Result result = cache.load(restored, file);
+    if (result != EnvironmentCache.Result.LOADED) {
+      throw new IllegalStateException("Cache not loaded: " + result);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,75 @@
+package com.google.ar.core.examples.java.benchmarks;
+
+import com.google.ar.core.examples.java.common.rendering.AREnvironment;
+import com.google.ar.core.examples.java.common.rendering.CameraFrame;
+import com.google.ar.core.examples.java.common.rendering.EnvironmentLayout;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link AREnvironment#update(CameraFrame)}, the capture worker's main cost, in both capture
+ * modes and layouts at several camera resolutions, and its scaling over 1 to 8 update threads.
+ *
+ * <p>Every call gets the next of FRAME_COUNT frames around the full circle, so the environment
+ * is measured in its steady state, where most texels already hold samples. A single-threaded
+ * update should not allocate once the thumbnail and sampling buffers have grown to the camera
+ * resolution.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EnvironmentUpdateBenchmark {
+  private static final int FRAME_COUNT = 16;
+
+  @Param({"640x480", "1280x720", "1920x1080"})
+  public String resolution;
+
+  @Param({"CUBE", "OCTAHEDRAL"})
+  public EnvironmentLayout layout;
+
+  @Param({"SCATTER", "GATHER"})
+  public AREnvironment.CaptureMode captureMode;
+
+  @Param({"1", "2", "4", "8"})
+  public int threadCount;
+
+  private AREnvironment env;
+  private CameraFrame[] frames;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    int[] size = SyntheticFrames.parseResolution(resolution);
+    frames = SyntheticFrames.createFrames(size[0], size[1], FRAME_COUNT);
+    env = new AREnvironment(layout, AREnvironment.DEFAULT_CUBE_SIZE);
+    env.setCaptureMode(captureMode);
+    env.setThreadCount(threadCount);
+    // Warm the environment up to its steady state
+    for (CameraFrame frame : frames) {
+      env.update(frame);
+    }
+  }
+
+  @Benchmark
+  public AREnvironment update() {
+    env.update(frames[next]);
+    next = (next + 1) % FRAME_COUNT;
+    return env;
+  }
+
+  @TearDown
+  public void tearDown() {
+    // Stops the update threads
+    env.setThreadCount(1);
+  }
+}
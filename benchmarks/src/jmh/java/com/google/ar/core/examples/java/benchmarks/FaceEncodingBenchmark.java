@@ -0,0 +1,104 @@
+package com.google.ar.core.examples.java.benchmarks;
+
+import com.google.ar.core.examples.java.common.rendering.AREnvironment;
+import com.google.ar.core.examples.java.common.rendering.EnvironmentLayout;
+import com.google.ar.core.examples.java.common.rendering.FaceBuffers;
+import com.google.ar.core.examples.java.common.rendering.FaceFormat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the faces for upload: the per-texel encoders of every {@link FaceFormat}, on linear
+ * colors up to four times white, and {@link AREnvironment#copyFaces(FaceBuffers)} of a captured
+ * environment, which encodes every level of every face.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FaceEncodingBenchmark {
+  private static final int TEXEL_COUNT = 1024;
+
+  private final float[] colors = new float[TEXEL_COUNT * 3];
+  private final int[] packed = new int[TEXEL_COUNT];
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(1);
+    for (int i = 0; i < TEXEL_COUNT * 3; i++) {
+      colors[i] = 4 * random.nextFloat() * random.nextFloat();
+    }
+    for (int i = 0; i < TEXEL_COUNT; i++) {
+      packed[i] = random.nextInt();
+    }
+  }
+
+  /** A captured environment and face snapshot in the format and layout under test. */
+  @State(Scope.Thread)
+  public static class FacesState {
+    @Param({"RGBA8888", "RGBM", "RGBE", "RGB565"})
+    public FaceFormat format;
+
+    @Param({"CUBE", "OCTAHEDRAL"})
+    public EnvironmentLayout layout;
+
+    AREnvironment env;
+    FaceBuffers faces;
+
+    @Setup
+    public void setUp() {
+      env = new AREnvironment(layout, AREnvironment.DEFAULT_CUBE_SIZE);
+      env.setFaceFormat(format);
+      SyntheticFrames.capture(env, 16);
+      faces = env.createFaceBuffers();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(TEXEL_COUNT)
+  public int encodeRgbm() {
+    int result = 0;
+    for (int i = 0; i < TEXEL_COUNT; i++) {
+      result ^= AREnvironment.encodeRgbm(colors[i * 3], colors[i * 3 + 1], colors[i * 3 + 2]);
+    }
+    return result;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(TEXEL_COUNT)
+  public int encodeRgbe() {
+    int result = 0;
+    for (int i = 0; i < TEXEL_COUNT; i++) {
+      result ^= AREnvironment.encodeRgbe(colors[i * 3], colors[i * 3 + 1], colors[i * 3 + 2]);
+    }
+    return result;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(TEXEL_COUNT)
+  public int encodeRgb565() {
+    int result = 0;
+    for (int i = 0; i < TEXEL_COUNT; i++) {
+      result ^= AREnvironment.encodeRgb565(packed[i]);
+    }
+    return result;
+  }
+
+  /** All levels of all faces, reported per copy. */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public FaceBuffers copyFaces(FacesState state) {
+    state.env.copyFaces(state.faces);
+    return state.faces;
+  }
+}
@@ -0,0 +1,46 @@
+package com.google.ar.core.examples.java.benchmarks;
+
+import com.google.ar.core.examples.java.common.rendering.PlaneMesh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PlaneMesh#update}, run by PlaneRenderer for every tracked plane on every frame, for
+ * boundary polygons from a freshly detected plane up to a large merged floor. The vertex and
+ * index buffers have grown to the polygon in the setup, so an update should not allocate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PlaneMeshBenchmark {
+  @Param({"8", "64", "512"})
+  public int vertexCount;
+
+  private final PlaneMesh mesh = new PlaneMesh();
+  private final float[] planeMatrix = new float[16];
+  private FloatBuffer polygon;
+
+  @Setup
+  public void setUp() {
+    planeMatrix[0] = planeMatrix[5] = planeMatrix[10] = planeMatrix[15] = 1;
+    planeMatrix[13] = -1.5f;
+    polygon = SyntheticFrames.createPolygon(vertexCount, 1.5f, 2);
+    mesh.update(planeMatrix, 3, 4, polygon);
+  }
+
+  @Benchmark
+  public PlaneMesh update() {
+    mesh.update(planeMatrix, 3, 4, polygon);
+    return mesh;
+  }
+}
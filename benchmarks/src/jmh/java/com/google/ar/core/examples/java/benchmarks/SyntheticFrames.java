@@ -0,0 +1,141 @@
+package com.google.ar.core.examples.java.benchmarks;
+
+import com.google.ar.core.examples.java.common.rendering.AREnvironment;
+import com.google.ar.core.examples.java.common.rendering.CameraFrame;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+ * Deterministic stand-ins for what ARCore hands the app, so every benchmark run sees the same
+ * input.
+ *
+ * <p>Camera frames are laid out like the YUV_420_888 images of most devices: a Y plane with rows
+ * padded to ROW_ALIGNMENT bytes, and U and V planes viewing one interleaved chroma buffer with a
+ * pixel stride of two. The image is a smooth gradient with some noise, and each frame of a
+ * sequence looks in another direction, so consecutive updates land on different texels.
+ */
+final class SyntheticFrames {
+  private static final int ROW_ALIGNMENT = 64;
+  // Vertical focal length of the projection, about 53 degrees of vertical field of view.
+  private static final float FOCAL_LENGTH = 2;
+  private static final float NEAR = 0.1f;
+  private static final float FAR = 100;
+
+  private SyntheticFrames() {}
+
+  /** Parses a resolution like "640x480" into {width, height}. */
+  static int[] parseResolution(String resolution) {
+    String[] parts = resolution.split("x");
+    return new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+  }
+
+  /**
+   * Creates {@code count} frames of the given size, turning around the vertical axis from one to
+   * the next and nodding up and down, 33 ms apart.
+   */
+  static CameraFrame[] createFrames(int width, int height, int count) {
+    Random random = new Random(width * 31 + height);
+    float[] projection = createProjectionMatrix(width, height);
+    CameraFrame[] frames = new CameraFrame[count];
+    for (int i = 0; i < count; i++) {
+      float yaw = (float) (2 * Math.PI * i / count);
+      float pitch = (float) (0.5 * Math.sin(3 * yaw));
+      CameraFrame frame = new CameraFrame();
+      frame.setImage(width, height, i * 33333333L);
+      setPlanes(frame, width, height, i, random);
+      frame.setMatrices(projection, createViewMatrix(yaw, pitch));
+      frames[i] = frame;
+    }
+    return frames;
+  }
+
+  /**
+   * Updates {@code env} with {@code frameCount} frames around the full circle and lets the hole
+   * fill and the prefilter run to completion, leaving it as after a while of capturing.
+   */
+  static void capture(AREnvironment env, int frameCount) {
+    for (CameraFrame frame : createFrames(640, 480, frameCount)) {
+      env.update(frame);
+    }
+    env.fillHoles(Long.MAX_VALUE);
+    env.prefilter(Long.MAX_VALUE);
+  }
+
+  /**
+   * Creates a plane boundary polygon like Plane#getPolygon: {@code vertexCount} x and z pairs
+   * counter-clockwise around the center, on an ellipse with the given half extents and up to 10%
+   * of jitter, in a direct buffer.
+   */
+  static FloatBuffer createPolygon(int vertexCount, float halfExtentX, float halfExtentZ) {
+    Random random = new Random(vertexCount);
+    FloatBuffer polygon =
+        ByteBuffer.allocateDirect(vertexCount * 2 * 4)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+    for (int i = 0; i < vertexCount; i++) {
+      double angle = 2 * Math.PI * i / vertexCount;
+      float radius = 0.9f + 0.1f * random.nextFloat();
+      polygon.put((float) Math.cos(angle) * halfExtentX * radius);
+      polygon.put((float) -Math.sin(angle) * halfExtentZ * radius);
+    }
+    polygon.flip();
+    return polygon;
+  }
+
+  /** Returns a symmetric perspective projection for the image aspect, in column-major order. */
+  private static float[] createProjectionMatrix(int width, int height) {
+    float[] projection = new float[16];
+    projection[0] = FOCAL_LENGTH * height / width;
+    projection[5] = FOCAL_LENGTH;
+    projection[10] = -(FAR + NEAR) / (FAR - NEAR);
+    projection[11] = -1;
+    projection[14] = -2 * FAR * NEAR / (FAR - NEAR);
+    return projection;
+  }
+
+  /** Returns the rotation by {@code pitch} around x after {@code yaw} around y, column-major. */
+  private static float[] createViewMatrix(float yaw, float pitch) {
+    float cy = (float) Math.cos(yaw);
+    float sy = (float) Math.sin(yaw);
+    float cp = (float) Math.cos(pitch);
+    float sp = (float) Math.sin(pitch);
+    return new float[] {
+      cy, sp * sy, -cp * sy, 0,
+      0, cp, sp, 0,
+      sy, -sp * cy, cp * cy, 0,
+      0, 0, 0, 1
+    };
+  }
+
+  private static void setPlanes(CameraFrame frame, int width, int height, int index,
+      Random random) {
+    int rowStride = (width + ROW_ALIGNMENT - 1) / ROW_ALIGNMENT * ROW_ALIGNMENT;
+    ByteBuffer luma = ByteBuffer.allocate(rowStride * height);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int value = 16 + (x + index * 16) * 200 / width % 200 + y * 32 / height;
+        luma.put(y * rowStride + x, (byte) (value + random.nextInt(8)));
+      }
+    }
+
+    // V and U interleaved, the U plane starting one byte in, as on most devices
+    int chromaHeight = height / 2;
+    ByteBuffer chroma = ByteBuffer.allocate(rowStride * chromaHeight);
+    for (int y = 0; y < chromaHeight; y++) {
+      for (int x = 0; x < width / 2; x++) {
+        chroma.put(y * rowStride + 2 * x, (byte) (128 + (x - y) * 64 / width));
+        chroma.put(y * rowStride + 2 * x + 1, (byte) (128 + (y * 2 - index) % 48 - 24));
+      }
+    }
+    int chromaBytes = rowStride * (chromaHeight - 1) + width - 1;
+
+    frame.setPlane(0, luma, rowStride, 1);
+    chroma.position(1).limit(1 + chromaBytes);
+    frame.setPlane(1, chroma, rowStride, 2);
+    chroma.position(0).limit(chromaBytes);
+    frame.setPlane(2, chroma, rowStride, 2);
+  }
+}
@@ -0,0 +1,44 @@
+package com.google.ar.core.examples.java.benchmarks;
+
+import com.google.ar.core.examples.java.common.rendering.StageTimings;
+import com.google.ar.core.examples.java.common.rendering.TraceRecorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The overhead of timing a stage: {@link StageTimings#record}, which every timed stage pays, and
+ * {@link TraceRecorder#record}, which it adds while tracing, including their clock reads. Each
+ * from one thread and from the OpenGL thread and capture workers recording at once. Both write
+ * into preallocated arrays and must not allocate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TraceRecorderBenchmark {
+  @Benchmark
+  public void record() {
+    TraceRecorder.record(TraceRecorder.Stage.UPDATE, System.nanoTime());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void recordContended() {
+    TraceRecorder.record(TraceRecorder.Stage.UPDATE, System.nanoTime());
+  }
+
+  @Benchmark
+  public void recordTimings() {
+    StageTimings.record(TraceRecorder.Stage.UPDATE, System.nanoTime());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void recordTimingsContended() {
+    StageTimings.record(TraceRecorder.Stage.UPDATE, System.nanoTime());
+  }
+}
@@ -0,0 +1,94 @@
+package com.google.ar.core.examples.java.benchmarks;
+
+import com.google.ar.core.examples.java.common.rendering.AREnvironment;
+import com.google.ar.core.examples.java.common.rendering.CameraFrame;
+import com.google.ar.core.examples.java.common.rendering.YuvConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * YUV to RGB conversion: the per-pixel {@link AREnvironment#yuvToARGB} the environment started
+ * out with against the table-driven {@link YuvConverter#toRgba}, per pixel, and converting whole
+ * frames a row at a time as the capture does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class YuvConversionBenchmark {
+  private static final int PIXEL_COUNT = 1024;
+
+  private final int[] y = new int[PIXEL_COUNT];
+  private final int[] u = new int[PIXEL_COUNT];
+  private final int[] v = new int[PIXEL_COUNT];
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(1);
+    for (int i = 0; i < PIXEL_COUNT; i++) {
+      y[i] = random.nextInt(256);
+      u[i] = random.nextInt(256);
+      v[i] = random.nextInt(256);
+    }
+  }
+
+  /** A camera frame and the row it is converted into. */
+  @State(Scope.Thread)
+  public static class FrameState {
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String resolution;
+
+    final YuvConverter converter = new YuvConverter();
+    int[] row;
+    int height;
+
+    @Setup
+    public void setUp() {
+      int[] size = SyntheticFrames.parseResolution(resolution);
+      converter.setFrame(SyntheticFrames.createFrames(size[0], size[1], 1)[0]);
+      row = new int[size[0]];
+      height = size[1];
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PIXEL_COUNT)
+  public int yuvToARGB() {
+    int result = 0;
+    for (int i = 0; i < PIXEL_COUNT; i++) {
+      // Takes its chroma centered on zero
+      result ^= AREnvironment.yuvToARGB(y[i], u[i] - 128, v[i] - 128);
+    }
+    return result;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PIXEL_COUNT)
+  public int toRgba() {
+    int result = 0;
+    for (int i = 0; i < PIXEL_COUNT; i++) {
+      result ^= YuvConverter.toRgba(y[i], u[i], v[i]);
+    }
+    return result;
+  }
+
+  /** One whole frame, reported per frame. */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public int[] convertFrame(FrameState state) {
+    for (int row = 0; row < state.height; row++) {
+      state.converter.convertRow(row, state.row, 0);
+    }
+    return state.row;
+  }
+}
@@ -0,0 +1,276 @@
+package com.google.ar.core.examples.java.replay;
+
+import com.google.ar.core.examples.java.common.rendering.AREnvironment;
+import com.google.ar.core.examples.java.common.rendering.CameraFrame;
+import com.google.ar.core.examples.java.common.rendering.CaptureTrigger;
+import com.google.ar.core.examples.java.common.rendering.EnvironmentLayout;
+import com.google.ar.core.examples.java.common.rendering.FaceBuffers;
+import com.google.ar.core.examples.java.common.rendering.FrameLog;
+import com.google.ar.core.examples.java.common.rendering.PlaneMesh;
+import com.google.ar.core.examples.java.common.rendering.RecordedFrame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Replays a {@link FrameLog} recorded on a device through the CPU side of the app, on a plain
+ * JVM and as fast as it goes: the capture trigger, {@link AREnvironment#update(CameraFrame)} with
+ * the fill, prefilter and face copy of every captured frame, and the plane meshes.
+ *
+ * <p>Unlike on the device, the fill and prefilter run to completion after every update instead
+ * of within a time budget, so the output only depends on the log and the options. Every pass
+ * starts from a fresh environment and has to end with the same hash, printed together with the
+ * stage timings of the last pass.
+ *
+ * <pre>
+ * FrameReplay frames.arlog [--layout cube|octahedral] [--size 64] [--threads 1] [--passes 3]
+ * </pre>
+ */
+public class FrameReplay {
+  private static final String[] STAGES = {
+    "trigger", "update", "fill", "prefilter", "copy", "planes"
+  };
+  private static final int TRIGGER = 0;
+  private static final int UPDATE = 1;
+  private static final int FILL = 2;
+  private static final int PREFILTER = 3;
+  private static final int COPY = 4;
+  private static final int PLANES = 5;
+
+  // 64-bit FNV-1a over the bytes of the output.
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final FrameLog.Reader reader;
+  private final EnvironmentLayout layout;
+  private final int cubeSize;
+  private final int threadCount;
+
+  private final RecordedFrame frame = new RecordedFrame();
+  private final PlaneMesh planeMesh = new PlaneMesh();
+  private final float[] planeMatrix = new float[16];
+
+  // [stage][frame] durations in nanoseconds of the last pass, -1 where the stage did not run.
+  private final long[][] durations;
+  private int capturedCount;
+  private long hash;
+
+  public FrameReplay(FrameLog.Reader reader, EnvironmentLayout layout, int cubeSize,
+      int threadCount) {
+    this.reader = reader;
+    this.layout = layout;
+    this.cubeSize = cubeSize;
+    this.threadCount = threadCount;
+    durations = new long[STAGES.length][reader.getFrameCount()];
+  }
+
+  /**
+   * Replays the whole log once from a fresh environment.
+   *
+   * @return the hash of the final faces, their prefiltered levels and lighting, and of every
+   *     plane mesh built on the way.
+   */
+  public long replay() {
+    AREnvironment env = new AREnvironment(layout, cubeSize);
+    env.setThreadCount(threadCount);
+    FaceBuffers faces = env.createFaceBuffers();
+    CaptureTrigger trigger = new CaptureTrigger();
+    for (long[] stage : durations) {
+      Arrays.fill(stage, -1);
+    }
+    capturedCount = 0;
+    hash = FNV_OFFSET;
+
+    reader.rewind();
+    for (int i = 0; reader.next(frame); i++) {
+      CameraFrame camera = frame.getCamera();
+      long start = System.nanoTime();
+      boolean capture =
+          trigger
+              .update(camera.getViewMatrix(), camera.getProjectionMatrix(), camera.getTimestamp())
+              .isCapture();
+      start = lap(TRIGGER, i, start);
+      if (capture) {
+        env.update(camera);
+        start = lap(UPDATE, i, start);
+        env.fillHoles(Long.MAX_VALUE);
+        start = lap(FILL, i, start);
+        env.prefilter(Long.MAX_VALUE);
+        start = lap(PREFILTER, i, start);
+        env.copyFaces(faces);
+        start = lap(COPY, i, start);
+        trigger.onCaptureSubmitted(true);
+        capturedCount++;
+      }
+      for (int plane = 0; plane < frame.getPlaneCount(); plane++) {
+        System.arraycopy(frame.getPlaneMatrices(), plane * 16, planeMatrix, 0, 16);
+        planeMesh.update(
+            planeMatrix,
+            frame.getPlaneExtentX(plane),
+            frame.getPlaneExtentZ(plane),
+            frame.getPlanePolygon(plane));
+        hashMesh();
+      }
+      lap(PLANES, i, start);
+    }
+
+    for (int level = 0; level < faces.getLevelCount(); level++) {
+      for (int face = 0; face < env.getFaceCount(); face++) {
+        hashBytes(faces.getLevel(level, face));
+      }
+    }
+    hashFloats(faces.getIrradianceCoefficients());
+    hashFloats(faces.getLightDirection());
+    hashFloats(faces.getLightColor());
+    env.setThreadCount(1);
+    return hash;
+  }
+
+  /** Returns the number of frames the capture trigger let through in the last pass. */
+  public int getCapturedCount() {
+    return capturedCount;
+  }
+
+  /** Prints the count, total and percentiles of every stage of the last pass. */
+  public void printTimings() {
+    System.out.println("stage,count,total_ms,p50_ms,p95_ms,max_ms");
+    long[] sorted = new long[reader.getFrameCount()];
+    for (int stage = 0; stage < STAGES.length; stage++) {
+      int count = 0;
+      long total = 0;
+      for (long duration : durations[stage]) {
+        if (duration >= 0) {
+          sorted[count++] = duration;
+          total += duration;
+        }
+      }
+      Arrays.sort(sorted, 0, count);
+      System.out.println(
+          String.format(
+              Locale.US,
+              "%s,%d,%.3f,%.3f,%.3f,%.3f",
+              STAGES[stage],
+              count,
+              total * 1e-6,
+              percentile(sorted, count, 0.5) * 1e-6,
+              percentile(sorted, count, 0.95) * 1e-6,
+              count > 0 ? sorted[count - 1] * 1e-6 : 0));
+    }
+  }
+
+  private long lap(int stage, int frameIndex, long start) {
+    long end = System.nanoTime();
+    durations[stage][frameIndex] = end - start;
+    return end;
+  }
+
+  private void hashMesh() {
+    FloatBuffer vertices = planeMesh.getVertexBuffer().duplicate();
+    vertices.rewind();
+    while (vertices.hasRemaining()) {
+      hashInt(Float.floatToIntBits(vertices.get()));
+    }
+    ShortBuffer indices = planeMesh.getIndexBuffer().duplicate();
+    indices.rewind();
+    while (indices.hasRemaining()) {
+      hashInt(indices.get());
+    }
+  }
+
+  private void hashBytes(ByteBuffer bytes) {
+    ByteBuffer data = bytes.duplicate();
+    data.rewind();
+    while (data.hasRemaining()) {
+      hash = (hash ^ (data.get() & 0xff)) * FNV_PRIME;
+    }
+  }
+
+  private void hashFloats(float[] values) {
+    for (float value : values) {
+      hashInt(Float.floatToIntBits(value));
+    }
+  }
+
+  private void hashInt(int value) {
+    for (int shift = 0; shift < 32; shift += 8) {
+      hash = (hash ^ ((value >>> shift) & 0xff)) * FNV_PRIME;
+    }
+  }
+
+  private static double percentile(long[] sorted, int count, double fraction) {
+    if (count == 0) {
+      return 0;
+    }
+    return sorted[Math.min(count - 1, (int) (fraction * count))];
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println(
+          "Usage: FrameReplay <frame log> [--layout cube|octahedral] [--size n] [--threads n]"
+              + " [--passes n]");
+      System.exit(2);
+    }
+    EnvironmentLayout layout = EnvironmentLayout.CUBE;
+    int cubeSize = AREnvironment.DEFAULT_CUBE_SIZE;
+    int threadCount = 1;
+    int passes = 3;
+    for (int i = 1; i + 1 < args.length; i += 2) {
+      String value = args[i + 1];
+      switch (args[i]) {
+        case "--layout":
+          layout = EnvironmentLayout.valueOf(value.toUpperCase(Locale.US));
+          break;
+        case "--size":
+          cubeSize = Integer.parseInt(value);
+          break;
+        case "--threads":
+          threadCount = Integer.parseInt(value);
+          break;
+        case "--passes":
+          passes = Integer.parseInt(value);
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+    if (!AREnvironment.isValidCubeSize(cubeSize)) {
+      throw new IllegalArgumentException("Invalid environment size " + cubeSize);
+    }
+
+    FrameLog.Reader reader = new FrameLog.Reader(new File(args[0]));
+    FrameReplay replay = new FrameReplay(reader, layout, cubeSize, threadCount);
+    long firstHash = 0;
+    boolean deterministic = true;
+    for (int pass = 0; pass < passes; pass++) {
+      long start = System.nanoTime();
+      long hash = replay.replay();
+      double millis = (System.nanoTime() - start) * 1e-6;
+      System.out.println(
+          String.format(
+              Locale.US,
+              "pass %d: %d frames, %d captured, %.1f ms, %.1f frames/s, hash %016x",
+              pass,
+              reader.getFrameCount(),
+              replay.getCapturedCount(),
+              millis,
+              reader.getFrameCount() * 1000 / millis,
+              hash));
+      if (pass == 0) {
+        firstHash = hash;
+      } else if (hash != firstHash) {
+        deterministic = false;
+      }
+    }
+    replay.printTimings();
+    if (!deterministic) {
+      System.err.println("Passes produced different hashes");
+      System.exit(1);
+    }
+  }
+}
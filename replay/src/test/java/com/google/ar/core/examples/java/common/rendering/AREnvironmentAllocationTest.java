@@ -0,0 +1,166 @@
+package com.google.ar.core.examples.java.common.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Guards the allocation-free projection of {@link AREnvironment#update(CameraFrame)}: once an
+ * environment has seen a few frames of a resolution, further updates must not allocate, in any
+ * capture mode or layout, serially or on the projection pool. Measured with the per-thread
+ * allocation counters of HotSpot, summed over all threads, so the test is skipped on JVMs
+ * without them.
+ *
+ * <p>The JIT may allocate while it compiles the update, so the updates are measured in several
+ * rounds and the cleanest one counts. An allocation in the update itself shows up in every round.
+ * Reading the counters allocates too, which a round without updates measures and subtracts.
+ */
+public class AREnvironmentAllocationTest {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  private static final int FRAME_COUNT = 8;
+  private static final int WARMUP_UPDATES = 4 * FRAME_COUNT;
+  private static final int MEASURED_UPDATES = 4 * FRAME_COUNT;
+  private static final int ROUNDS = 5;
+  private static final int PARALLEL_THREADS = 4;
+
+  private com.sun.management.ThreadMXBean threads;
+  private CameraFrame[] frames;
+
+  @Before
+  public void setUp() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    threads = (com.sun.management.ThreadMXBean) bean;
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+    frames = createFrames();
+  }
+
+  @Test
+  public void scatterCubeDoesNotAllocate() {
+    assertEquals(
+        0, getUpdateAllocation(EnvironmentLayout.CUBE, AREnvironment.CaptureMode.SCATTER, 1));
+  }
+
+  @Test
+  public void gatherCubeDoesNotAllocate() {
+    assertEquals(
+        0, getUpdateAllocation(EnvironmentLayout.CUBE, AREnvironment.CaptureMode.GATHER, 1));
+  }
+
+  @Test
+  public void scatterOctahedralDoesNotAllocate() {
+    assertEquals(
+        0, getUpdateAllocation(EnvironmentLayout.OCTAHEDRAL, AREnvironment.CaptureMode.SCATTER, 1));
+  }
+
+  @Test
+  public void gatherOctahedralDoesNotAllocate() {
+    assertEquals(
+        0, getUpdateAllocation(EnvironmentLayout.OCTAHEDRAL, AREnvironment.CaptureMode.GATHER, 1));
+  }
+
+  @Test
+  public void parallelScatterDoesNotAllocate() {
+    assertEquals(
+        0,
+        getUpdateAllocation(
+            EnvironmentLayout.CUBE, AREnvironment.CaptureMode.SCATTER, PARALLEL_THREADS));
+  }
+
+  @Test
+  public void parallelGatherDoesNotAllocate() {
+    assertEquals(
+        0,
+        getUpdateAllocation(
+            EnvironmentLayout.CUBE, AREnvironment.CaptureMode.GATHER, PARALLEL_THREADS));
+  }
+
+  /**
+   * Returns the fewest bytes allocated by MEASURED_UPDATES updates in any of ROUNDS rounds after
+   * the warm-up, on any thread.
+   */
+  private long getUpdateAllocation(
+      EnvironmentLayout layout, AREnvironment.CaptureMode mode, int threadCount) {
+    AREnvironment env = new AREnvironment(layout, AREnvironment.DEFAULT_CUBE_SIZE);
+    env.setCaptureMode(mode);
+    env.setThreadCount(threadCount);
+    try {
+      for (int i = 0; i < WARMUP_UPDATES; i++) {
+        env.update(frames[i % FRAME_COUNT]);
+      }
+      // The pool threads exist now, and no more get started while measuring
+      long[] threadIds = threads.getAllThreadIds();
+      long overhead = Long.MAX_VALUE;
+      long fewest = Long.MAX_VALUE;
+      for (int round = 0; round < ROUNDS; round++) {
+        long before = getAllocatedBytes(threadIds);
+        overhead = Math.min(overhead, getAllocatedBytes(threadIds) - before);
+        before = getAllocatedBytes(threadIds);
+        for (int i = 0; i < MEASURED_UPDATES; i++) {
+          env.update(frames[i % FRAME_COUNT]);
+        }
+        fewest = Math.min(fewest, getAllocatedBytes(threadIds) - before);
+      }
+      return Math.max(0, fewest - overhead);
+    } finally {
+      env.setThreadCount(1);
+    }
+  }
+
+  private long getAllocatedBytes(long[] threadIds) {
+    long total = 0;
+    for (long bytes : threads.getThreadAllocatedBytes(threadIds)) {
+      // -1 for threads that have ended
+      total += Math.max(0, bytes);
+    }
+    return total;
+  }
+
+  /** Creates gray frames looking around the vertical axis, with interleaved chroma. */
+  private static CameraFrame[] createFrames() {
+    float[] projection = {
+      1.5f, 0, 0, 0,
+      0, 2, 0, 0,
+      0, 0, -1.002f, -1,
+      0, 0, -0.2f, 0
+    };
+    ByteBuffer luma = ByteBuffer.allocate(WIDTH * HEIGHT);
+    ByteBuffer chroma = ByteBuffer.allocate(WIDTH * HEIGHT / 2);
+    for (int i = 0; i < luma.capacity(); i++) {
+      luma.put(i, (byte) (i % WIDTH * 255 / WIDTH));
+    }
+    for (int i = 0; i < chroma.capacity(); i++) {
+      chroma.put(i, (byte) (112 + i % 32));
+    }
+
+    CameraFrame[] frames = new CameraFrame[FRAME_COUNT];
+    for (int i = 0; i < FRAME_COUNT; i++) {
+      float angle = (float) (2 * Math.PI * i / FRAME_COUNT);
+      float cos = (float) Math.cos(angle);
+      float sin = (float) Math.sin(angle);
+      CameraFrame frame = new CameraFrame();
+      frame.setImage(WIDTH, HEIGHT, i * 33333333L);
+      luma.clear();
+      frame.setPlane(0, luma, WIDTH, 1);
+      chroma.position(1).limit(chroma.capacity());
+      frame.setPlane(1, chroma, WIDTH, 2);
+      chroma.position(0).limit(chroma.capacity() - 1);
+      frame.setPlane(2, chroma, WIDTH, 2);
+      frame.setMatrices(projection, new float[] {
+        cos, 0, -sin, 0,
+        0, 1, 0, 0,
+        sin, 0, cos, 0,
+        0, 0, 0, 1
+      });
+      frames[i] = frame;
+    }
+    return frames;
+  }
+}